@@ -0,0 +1,320 @@
+package org.foxteam.noisyfox.dnsproxy.bench;
+
+import org.foxteam.noisyfox.dnsproxy.RingBuffer;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/27.
+ * RequestFlinger 队列交接延迟的微基准，比较原来的 LinkedList+Condition 与现在的 RingBuffer
+ * <p/>
+ * 两种队列都按 RequestFlinger 中的用法实现：
+ * 原来的队列每次入队都加锁并 signalAll，消费者在 Condition 上等待；
+ * 现在的队列无锁入队，只有消费者确实挂起时才唤醒，单消费者用 LockSupport，多消费者用 Condition。
+ * 延迟从生产者入队前到消费者取出后，按纳秒统计
+ * <p/>
+ * 编译和运行（不依赖构建系统）：
+ * <pre>
+ * javac -d /tmp/bench src/org/foxteam/noisyfox/dnsproxy/RingBuffer.java \
+ *     bench/org/foxteam/noisyfox/dnsproxy/bench/QueueHandoffBenchmark.java
+ * java -cp /tmp/bench org.foxteam.noisyfox.dnsproxy.bench.QueueHandoffBenchmark [每轮消息数] [轮数]
+ * </pre>
+ * 每个场景先预热一轮，之后各轮的结果分别输出
+ */
+public class QueueHandoffBenchmark {
+    private static final int QUEUE_SIZE = 1024; // 与 queue_size 的默认值相同
+
+    private interface Handoff {
+        /**
+         * @return 队列已满时返回false
+         */
+        boolean put(Message message);
+
+        Message take() throws InterruptedException;
+    }
+
+    private static class Message {
+        private final long mTime;
+
+        private Message(long time) {
+            mTime = time;
+        }
+    }
+
+    private static final Message POISON = new Message(0L);
+
+    /**
+     * 原来的请求队列和响应队列
+     */
+    private static class LockedHandoff implements Handoff {
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mCondition = mLock.newCondition();
+        private final Queue<Message> mQueue = new LinkedList<Message>();
+
+        @Override
+        public boolean put(Message message) {
+            mLock.lock();
+            try {
+                mQueue.offer(message);
+                mCondition.signalAll();
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public Message take() throws InterruptedException {
+            mLock.lock();
+            try {
+                while (mQueue.isEmpty()) {
+                    mCondition.await();
+                }
+                return mQueue.poll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 现在的请求队列：多个隧道线程消费，有线程挂起时才加锁唤醒
+     */
+    private static class RingHandoff implements Handoff {
+        private final RingBuffer<Message> mQueue = new RingBuffer<Message>(QUEUE_SIZE);
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mCondition = mLock.newCondition();
+        private final AtomicInteger mWaiters = new AtomicInteger(0);
+
+        @Override
+        public boolean put(Message message) {
+            if (!mQueue.offer(message)) {
+                return false;
+            }
+            if (mWaiters.get() > 0) {
+                mLock.lock();
+                try {
+                    mCondition.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Message take() throws InterruptedException {
+            while (true) {
+                Message message = mQueue.poll();
+                if (message != null) {
+                    return message;
+                }
+                mLock.lock();
+                try {
+                    mWaiters.incrementAndGet();
+                    try {
+                        if (mQueue.isEmpty()) {
+                            mCondition.await();
+                        }
+                    } finally {
+                        mWaiters.decrementAndGet();
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 现在的响应队列：只有 LocalResponder 一个消费者，用 LockSupport 挂起
+     */
+    private static class ParkingRingHandoff implements Handoff {
+        private final RingBuffer<Message> mQueue = new RingBuffer<Message>(QUEUE_SIZE);
+        private volatile Thread mConsumer = null;
+        private volatile boolean mParked = false;
+
+        @Override
+        public boolean put(Message message) {
+            if (!mQueue.offer(message)) {
+                return false;
+            }
+            if (mParked) {
+                LockSupport.unpark(mConsumer);
+            }
+            return true;
+        }
+
+        @Override
+        public Message take() throws InterruptedException {
+            if (mConsumer == null) {
+                mConsumer = Thread.currentThread();
+            }
+            while (true) {
+                Message message = mQueue.poll();
+                if (message != null) {
+                    return message;
+                }
+                // 先声明将要挂起再检查队列，避免错过唤醒
+                mParked = true;
+                if (mQueue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                mParked = false;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    private interface Factory {
+        Handoff create();
+    }
+
+    private static final Factory LOCKED = new Factory() {
+        @Override
+        public Handoff create() {
+            return new LockedHandoff();
+        }
+    };
+
+    private static final Factory RING = new Factory() {
+        @Override
+        public Handoff create() {
+            return new RingHandoff();
+        }
+    };
+
+    private static final Factory PARKING_RING = new Factory() {
+        @Override
+        public Handoff create() {
+            return new ParkingRingHandoff();
+        }
+    };
+
+    /**
+     * @param producers  生产者数，对应监听线程或隧道的读取线程
+     * @param consumers  消费者数，对应隧道线程或 LocalResponder
+     * @param intervalNs 每个生产者两次入队之间的间隔，0 表示连续入队
+     */
+    private static void run(String name, Factory factory, final int producers, int consumers,
+                            final int messages, final long intervalNs, int rounds) throws InterruptedException {
+        for (int round = 0; round <= rounds; round++) {
+            final Handoff handoff = factory.create();
+            final long latencies[][] = new long[consumers][messages * producers];
+            final int counts[] = new int[consumers];
+            final AtomicInteger dropped = new AtomicInteger(0);
+
+            Thread consumerThreads[] = new Thread[consumers];
+            for (int i = 0; i < consumers; i++) {
+                final int index = i;
+                consumerThreads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                Message message = handoff.take();
+                                if (message == POISON) {
+                                    return;
+                                }
+                                latencies[index][counts[index]++] = System.nanoTime() - message.mTime;
+                            }
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                };
+                consumerThreads[i].start();
+            }
+
+            Thread producerThreads[] = new Thread[producers];
+            for (int i = 0; i < producers; i++) {
+                producerThreads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        long next = System.nanoTime();
+                        for (int n = 0; n < messages; n++) {
+                            if (intervalNs > 0) {
+                                next += intervalNs;
+                                while (System.nanoTime() < next) {
+                                    // 忙等，模拟按固定速率到达的请求
+                                }
+                            }
+                            if (!handoff.put(new Message(System.nanoTime()))) {
+                                dropped.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+            }
+
+            long start = System.nanoTime();
+            for (Thread thread : producerThreads) {
+                thread.start();
+            }
+            for (Thread thread : producerThreads) {
+                thread.join();
+            }
+            for (int i = 0; i < consumers; i++) {
+                while (!handoff.put(POISON)) {
+                    Thread.yield();
+                }
+            }
+            for (Thread thread : consumerThreads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            int total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            long all[] = new long[total];
+            int pos = 0;
+            for (int i = 0; i < consumers; i++) {
+                System.arraycopy(latencies[i], 0, all, pos, counts[i]);
+                pos += counts[i];
+            }
+            Arrays.sort(all);
+            if (round == 0) {
+                continue; // 预热
+            }
+            System.out.println(String.format(
+                    "%-28s round %d: %8.0f msg/s, p50 %7dns, p99 %8dns, p99.9 %9dns, max %10dns, dropped %d",
+                    name, round, total * 1e9 / elapsed, percentile(all, 0.50), percentile(all, 0.99),
+                    percentile(all, 0.999), all.length == 0 ? 0 : all[all.length - 1], dropped.get()));
+        }
+    }
+
+    private static long percentile(long sorted[], double p) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        System.out.println(String.format("%d message(s) per producer, %d round(s), %d CPU(s)",
+                messages, rounds, Runtime.getRuntime().availableProcessors()));
+
+        // 响应队列：一个隧道读取线程交给 LocalResponder，分别在稳定速率和突发下测量
+        run("respond 1->1 paced LinkedList", LOCKED, 1, 1, messages, 20000L, rounds);
+        run("respond 1->1 paced RingBuffer", PARKING_RING, 1, 1, messages, 20000L, rounds);
+        run("respond 1->1 burst LinkedList", LOCKED, 1, 1, messages, 0L, rounds);
+        run("respond 1->1 burst RingBuffer", PARKING_RING, 1, 1, messages, 0L, rounds);
+
+        // 请求队列：两个监听线程交给四个隧道线程
+        run("request 2->4 paced LinkedList", LOCKED, 2, 4, messages, 20000L, rounds);
+        run("request 2->4 paced RingBuffer", RING, 2, 4, messages, 20000L, rounds);
+        run("request 2->4 burst LinkedList", LOCKED, 2, 4, messages, 0L, rounds);
+        run("request 2->4 burst RingBuffer", RING, 2, 4, messages, 0L, rounds);
+    }
+}
@@ -0,0 +1,493 @@
+package org.foxteam.noisyfox.dnsproxy.bench;
+
+import org.foxteam.noisyfox.dnsproxy.client.ClientHandshakeMachine;
+import org.foxteam.noisyfox.dnsproxy.crypto.DH;
+import org.foxteam.noisyfox.dnsproxy.crypto.aes.AESFrameCodec;
+import org.foxteam.noisyfox.dnsproxy.server.Server;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Noisyfox on 2015/3/27.
+ * 服务器工作线程模式的负载测试，比较 thread 和 virtual 两种模式在大量隧道连接下的
+ * 平台线程数、载体线程数、内存占用和查询延迟
+ * <p/>
+ * 在同一个进程中启动服务器和一个本地的假上游（把请求原样加上应答标志返回），
+ * 先用少量线程完成所有连接的握手，再由一个选择器线程驱动全部连接：
+ * 每个连接同时只有一个查询在途，收到应答后立即发出下一个，名字各不相同，不会命中缓存或合并。
+ * 平台线程和载体线程（ForkJoinPool 的工作线程）由 ThreadMXBean 统计，
+ * 内存统计 GC 后的堆占用和进程的 VmRSS（平台线程的栈不在堆中，虚拟线程的栈在堆中），
+ * 其中包含驱动端每个连接约16KB的缓冲区，两种模式相同
+ * <p/>
+ * Threads.enableVirtual 对整个进程生效，每种模式需要单独运行一次。
+ * virtual 模式需要 Java 21 以上，10000 个连接需要先调大文件描述符上限：
+ * <pre>
+ * javac -encoding UTF-8 -cp libs/json-simple-1.1.1.jar:libs/bcprov-jdk15on-151.jar -d /tmp/bench \
+ *     $(find src bench -name '*.java')
+ * ulimit -n 65536
+ * CP=/tmp/bench:libs/json-simple-1.1.1.jar:libs/bcprov-jdk15on-151.jar
+ * java -cp $CP org.foxteam.noisyfox.dnsproxy.bench.VirtualThreadLoadTest thread 1000
+ * java -cp $CP org.foxteam.noisyfox.dnsproxy.bench.VirtualThreadLoadTest virtual 1000
+ * java -cp $CP org.foxteam.noisyfox.dnsproxy.bench.VirtualThreadLoadTest thread 10000
+ * java -cp $CP org.foxteam.noisyfox.dnsproxy.bench.VirtualThreadLoadTest virtual 10000
+ * </pre>
+ * 参数依次为：模式、连接数、每个连接的查询数（默认20）、握手线程数（默认16）
+ */
+public class VirtualThreadLoadTest {
+    private static final int QUERY_TIMEOUT = 5000; // 超过这个时间没有应答的查询计为丢失
+    private static final int REQUESTER_PORT = 1;
+
+    /**
+     * 本地假上游，把收到的查询加上应答标志后原样返回
+     */
+    private static class EchoUpstream extends Thread {
+        private final DatagramSocket mSocket;
+
+        private EchoUpstream() throws IOException {
+            mSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mSocket.setReceiveBufferSize(4 * 1024 * 1024);
+            setDaemon(true);
+        }
+
+        private int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            byte buffer[] = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (true) {
+                packet.setLength(buffer.length);
+                try {
+                    mSocket.receive(packet);
+                    if (packet.getLength() < 12) {
+                        continue;
+                    }
+                    buffer[2] |= 0x80; // QR
+                    mSocket.send(packet);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个隧道连接，握手之后只在选择器线程中使用
+     */
+    private static class Connection {
+        private final int mIndex;
+        private final SocketChannel mChannel;
+        private final AESFrameCodec mCodec;
+        // 假上游的应答和查询一样短，不需要按最大帧长分配
+        private final ByteBuffer mEncrypted = ByteBuffer.allocate(8 * 1024);
+        private final ByteBuffer mPlain = ByteBuffer.allocate(8 * 1024);
+        private final List<ByteBuffer> mPendingWrites = new ArrayList<ByteBuffer>();
+
+        private int mSent = 0;
+        private int mTransactionId;
+        private long mSendTime;
+        private boolean mWaiting = false;
+
+        private Connection(int index, SocketChannel channel, byte key[], byte iv[]) {
+            mIndex = index;
+            mChannel = channel;
+            mCodec = new AESFrameCodec(key, iv);
+        }
+    }
+
+    private static class Sample {
+        private int mThreads;
+        private int mCarriers;
+        private long mHeap;
+        private long mRss;
+
+        @Override
+        public String toString() {
+            return String.format("platform threads %d, carriers %d, heap %.1fMB, rss %s",
+                    mThreads, mCarriers, mHeap / 1048576.0,
+                    mRss < 0 ? "n/a" : String.format("%.1fMB", mRss / 1048576.0));
+        }
+    }
+
+    private static Sample sample(boolean gc) {
+        if (gc) {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Sample sample = new Sample();
+        sample.mThreads = threadBean.getThreadCount();
+        sample.mCarriers = countCarriers(threadBean);
+        sample.mHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        sample.mRss = readRss();
+        return sample;
+    }
+
+    /**
+     * 虚拟线程的载体是名为 ForkJoinPool-N-worker-M 的平台线程
+     */
+    private static int countCarriers(ThreadMXBean threadBean) {
+        int count = 0;
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("ForkJoinPool-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return 进程的常驻内存，不是 Linux 时返回-1
+     */
+    private static long readRss() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    String value = line.substring(6).trim();
+                    return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 建立连接并完成加密握手，之后把连接切换为非阻塞模式
+     */
+    private static Connection connect(int index, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        boolean success = false;
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            DH dh = new DH(256, new SecureRandom());
+            dh.generateKeyPair();
+            ClientHandshakeMachine handshakeMachine =
+                    new ClientHandshakeMachine(socket.getInputStream(), socket.getOutputStream(), dh);
+            if (!handshakeMachine.start()) {
+                throw new IOException("Handshake failed");
+            }
+            channel.configureBlocking(false);
+            success = true;
+            return new Connection(index, channel, handshakeMachine.getKey(), handshakeMachine.getIV());
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+
+    private static Connection[] connectAll(final int count, final int port, int threads)
+            throws InterruptedException {
+        final Connection connections[] = new Connection[count];
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < count) {
+                        try {
+                            connections[index] = connect(index, port);
+                        } catch (IOException e) {
+                            if (failed.getAndIncrement() == 0) {
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        if (failed.get() > 0) {
+            System.out.println(String.format("%d connection(s) failed", failed.get()));
+        }
+        return connections;
+    }
+
+    private static byte[] buildQuery(int id, String name) {
+        byte query[] = new byte[12 + name.length() + 2 + 4];
+        query[0] = (byte) ((id >> 8) & 0xFF);
+        query[1] = (byte) (id & 0xFF);
+        query[2] = 0x01; // RD
+        query[5] = 0x01; // QDCOUNT
+        int pos = 12;
+        for (String label : name.split("\\.")) {
+            query[pos++] = (byte) label.length();
+            for (int i = 0; i < label.length(); i++) {
+                query[pos++] = (byte) label.charAt(i);
+            }
+        }
+        query[pos++] = 0x00;
+        query[pos + 1] = 0x01; // TYPE A
+        query[pos + 3] = 0x01; // CLASS IN
+        return query;
+    }
+
+    private static void send(Connection connection, Selector selector, long now) throws IOException {
+        int id = (connection.mIndex * 31 + connection.mSent) & 0xFFFF;
+        byte query[] = buildQuery(id, "q" + connection.mSent + "-" + connection.mIndex + ".load.test");
+        byte frame[] = new byte[4 + query.length];
+        frame[0] = (byte) ((REQUESTER_PORT >> 8) & 0xFF);
+        frame[1] = (byte) (REQUESTER_PORT & 0xFF);
+        frame[2] = (byte) ((query.length >> 8) & 0xFF);
+        frame[3] = (byte) (query.length & 0xFF);
+        System.arraycopy(query, 0, frame, 4, query.length);
+
+        connection.mSent++;
+        connection.mTransactionId = id;
+        connection.mSendTime = now;
+        connection.mWaiting = true;
+
+        ByteBuffer buffer = connection.mCodec.encode(frame, 0, frame.length);
+        if (connection.mPendingWrites.isEmpty()) {
+            connection.mChannel.write(buffer);
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        }
+        connection.mPendingWrites.add(buffer);
+        connection.mChannel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 以闭环方式驱动所有连接，直到每个连接都发出了指定数量的查询
+     *
+     * @return 每个查询的延迟，单位纳秒
+     */
+    private static long[] drive(Connection connections[], int queries, int lost[]) throws IOException {
+        Selector selector = Selector.open();
+        long latencies[] = new long[connections.length * queries];
+        int count = 0;
+        int active = 0;
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            if (connection == null) {
+                continue;
+            }
+            connection.mChannel.register(selector, SelectionKey.OP_READ, connection);
+            send(connection, selector, now);
+            active++;
+        }
+
+        long lastCheck = System.nanoTime();
+        while (active > 0) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isWritable()) {
+                    while (!connection.mPendingWrites.isEmpty()) {
+                        ByteBuffer buffer = connection.mPendingWrites.get(0);
+                        connection.mChannel.write(buffer);
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        connection.mPendingWrites.remove(0);
+                    }
+                    if (connection.mPendingWrites.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (key.isReadable()) {
+                    if (connection.mChannel.read(connection.mEncrypted) < 0) {
+                        throw new IOException("Connection " + connection.mIndex + " closed by server");
+                    }
+                    connection.mEncrypted.flip();
+                    connection.mCodec.decode(connection.mEncrypted, connection.mPlain);
+                    connection.mEncrypted.compact();
+
+                    // 明文是连续的数据包流，一个数据包可能跨越多个帧
+                    ByteBuffer plain = connection.mPlain;
+                    plain.flip();
+                    while (plain.remaining() >= 4) {
+                        int length = ((plain.get(plain.position() + 2) & 0xFF) << 8)
+                                | (plain.get(plain.position() + 3) & 0xFF);
+                        if (plain.remaining() < 4 + length) {
+                            break;
+                        }
+                        int start = plain.position() + 4;
+                        int id = length >= 2 ? ((plain.get(start) & 0xFF) << 8) | (plain.get(start + 1) & 0xFF) : -1;
+                        plain.position(start + length);
+
+                        if (!connection.mWaiting || id != connection.mTransactionId) {
+                            continue; // 已经计为丢失的查询迟到的应答
+                        }
+                        long time = System.nanoTime();
+                        latencies[count++] = time - connection.mSendTime;
+                        connection.mWaiting = false;
+                        if (connection.mSent < queries) {
+                            send(connection, selector, time);
+                        } else {
+                            active--;
+                        }
+                    }
+                    plain.compact();
+                }
+            }
+            selector.selectedKeys().clear();
+
+            now = System.nanoTime();
+            if (now - lastCheck >= TimeUnit.MILLISECONDS.toNanos(100)) {
+                lastCheck = now;
+                for (Connection connection : connections) {
+                    if (connection == null || !connection.mWaiting
+                            || now - connection.mSendTime < TimeUnit.MILLISECONDS.toNanos(QUERY_TIMEOUT)) {
+                        continue;
+                    }
+                    lost[0]++;
+                    connection.mWaiting = false;
+                    if (connection.mSent < queries) {
+                        send(connection, selector, now);
+                    } else {
+                        active--;
+                    }
+                }
+            }
+        }
+        selector.close();
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private static long percentile(long sorted[], double p) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !"thread".equals(args[0]) && !"virtual".equals(args[0])) {
+            System.out.println("usage: VirtualThreadLoadTest thread|virtual [connections] [queries] [handshake threads]");
+            return;
+        }
+        String mode = args[0];
+        int connectionCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int handshakeThreads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        System.out.println(String.format("mode %s, %d connection(s), %d query(s) each, %d CPU(s), java %s",
+                mode, connectionCount, queries, Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.version")));
+
+        EchoUpstream upstream = new EchoUpstream();
+        upstream.start();
+
+        int port = findFreePort();
+        JSONObject config = new JSONObject();
+        config.put("workers", mode);
+        config.put("max_connections", String.valueOf(connectionCount));
+        config.put("connections_per_ip", "0");
+        config.put("queries_per_ip", "0");
+        config.put("cache_size", "0");
+        config.put("negative_cache_size", "0");
+        Server server = new Server();
+        if (!server.init(new String[]{"server", "-p", String.valueOf(port),
+                "-d", "127.0.0.1:" + upstream.getPort()}, config)) {
+            System.out.println("Server init failed");
+            System.exit(1);
+        }
+        server.start();
+
+        Sample base = sample(true);
+        System.out.println("baseline: " + base);
+
+        long start = System.nanoTime();
+        Connection connections[] = connectAll(connectionCount, port, handshakeThreads);
+        System.out.println(String.format("connected in %.1fs", (System.nanoTime() - start) / 1e9));
+
+        Thread.sleep(1000); // 等待服务器的工作线程都进入阻塞读取
+        Sample idle = sample(true);
+        System.out.println("idle:     " + idle);
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        int lost[] = new int[1];
+        start = System.nanoTime();
+        long latencies[] = drive(connections, queries, lost);
+        long elapsed = System.nanoTime() - start;
+        int carriers = countCarriers(threadBean);
+        Sample after = sample(true);
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("load:     %d answer(s) in %.1fs, %.0f q/s, lost %d",
+                latencies.length, elapsed / 1e9, latencies.length * 1e9 / elapsed, lost[0]));
+        System.out.println(String.format("latency:  p50 %s, p99 %s, p99.9 %s, max %s",
+                formatMillis(percentile(latencies, 0.50)), formatMillis(percentile(latencies, 0.99)),
+                formatMillis(percentile(latencies, 0.999)),
+                formatMillis(latencies.length == 0 ? 0 : latencies[latencies.length - 1])));
+        System.out.println(String.format("threads:  peak platform %d, carriers after load %d",
+                threadBean.getPeakThreadCount(), carriers));
+        System.out.println("after:    " + after);
+        System.out.println(String.format("per connection: %.1fKB heap, %s rss",
+                (idle.mHeap - base.mHeap) / 1024.0 / connectionCount,
+                idle.mRss < 0 || base.mRss < 0 ? "n/a"
+                        : String.format("%.1fKB", (idle.mRss - base.mRss) / 1024.0 / connectionCount)));
+
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.mChannel.close();
+            }
+        }
+        server.stop();
+        server.destroy();
+        System.exit(0);
+    }
+}
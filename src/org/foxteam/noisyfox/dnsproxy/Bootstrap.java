@@ -28,7 +28,7 @@ public class Bootstrap {
             "-c,--config CONFIG_FILE        proxy config\n" +
             "-p,--port SERVER_PORT          server port, default is 7373\n" +
             "-s,--server SERVER_ADDRESS     server address\n" +
-            "-d,--dns DNS_PROVIDER          DNS provider, default is 8.8.8.8\n" +
+            "-d,--dns DNS_PROVIDER          DNS provider(s) separated by comma, default is 8.8.8.8\n" +
             "-v,-vv                         verbose mode";
 
     private static void printInfo() {
@@ -50,6 +50,19 @@ public class Bootstrap {
         final Bootstrap bootstrap = new Bootstrap();
         bootstrap.init(args);
 
+        // 进程被终止时先停止服务，等待主线程完成 destroy 后再退出
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                bootstrap.stop();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+
         bootstrap.start();
         bootstrap.waitToStop();
         bootstrap.destroy();
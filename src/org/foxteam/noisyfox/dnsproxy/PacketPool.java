@@ -0,0 +1,101 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Noisyfox on 2015/3/13.
+ * 按大小分级的数据包池，客户端和服务器共用
+ * <p/>
+ * 绝大多数DNS报文不超过512字节，按实际大小从对应级别取缓冲区，
+ * 避免每个报文都占用一个64KB的缓冲区
+ */
+public class PacketPool {
+    public static final int MAX_PACKET_SIZE = 65535;
+
+    // 512: RFC 1035 UDP 报文上限；1232: EDNS 推荐的默认缓冲区大小；4096: 常见的 EDNS 上限
+    private static final int SIZE_CLASSES[] = {512, 1232, 4096, MAX_PACKET_SIZE};
+    private static final int POOL_CAPACITY[] = {256, 256, 64, 8};
+
+    private static final PacketPool sShared = new PacketPool();
+
+    public static PacketPool getShared() {
+        return sShared;
+    }
+
+    private final RingBuffer<DatagramPacket> mPools[];
+    private final AtomicLong mObtainCount[];
+    private final AtomicLong mMissCount[];
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PacketPool() {
+        mPools = new RingBuffer[SIZE_CLASSES.length];
+        mObtainCount = new AtomicLong[SIZE_CLASSES.length];
+        mMissCount = new AtomicLong[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            mPools[i] = new RingBuffer<DatagramPacket>(POOL_CAPACITY[i]);
+            mObtainCount[i] = new AtomicLong(0L);
+            mMissCount[i] = new AtomicLong(0L);
+        }
+    }
+
+    /**
+     * 获得一个能容纳 size 字节的数据包，数据包的长度被设置为 size
+     */
+    public DatagramPacket obtain(int size) {
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            throw new IllegalArgumentException("Packet too large " + size);
+        }
+
+        mObtainCount[sizeClass].incrementAndGet();
+        DatagramPacket packet = mPools[sizeClass].poll();
+        if (packet == null) {
+            mMissCount[sizeClass].incrementAndGet();
+            byte buffer[] = new byte[SIZE_CLASSES[sizeClass]];
+            packet = new DatagramPacket(buffer, buffer.length);
+        }
+        packet.setData(packet.getData(), 0, size);
+
+        return packet;
+    }
+
+    /**
+     * 获得一个数据包并填入 data 中的内容
+     */
+    public DatagramPacket obtain(byte data[], int offset, int length) {
+        DatagramPacket packet = obtain(length);
+        System.arraycopy(data, offset, packet.getData(), 0, length);
+        return packet;
+    }
+
+    /**
+     * 回收数据包，不是从池中取得的数据包会被直接丢弃
+     */
+    public void release(DatagramPacket packet) {
+        int capacity = packet.getData().length;
+        int sizeClass = sizeClassOf(capacity);
+        if (sizeClass >= 0 && SIZE_CLASSES[sizeClass] == capacity) {
+            mPools[sizeClass].offer(packet);
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PacketPool");
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            sb.append(String.format(" [%d: pooled %d/%d, obtain %d, miss %d]", SIZE_CLASSES[i],
+                    mPools[i].size(), mPools[i].capacity(), mObtainCount[i].get(), mMissCount[i].get()));
+        }
+        return sb.toString();
+    }
+}
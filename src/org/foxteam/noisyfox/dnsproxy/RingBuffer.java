@@ -0,0 +1,101 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by Noisyfox on 2015/3/12.
+ * 预分配的有界无锁环形队列，支持多生产者多消费者
+ * <p/>
+ * 每个槽位带有一个序号，生产者和消费者通过CAS争夺位置后，以序号发布和回收槽位，
+ * 入队和出队都不需要加锁，也不会分配新的对象
+ */
+public class RingBuffer<E> {
+    private final Object mSlots[];
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+
+    private final AtomicLong mHead = new AtomicLong(0L); // 下一个出队位置
+    private final AtomicLong mTail = new AtomicLong(0L); // 下一个入队位置
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new Object[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * 入队
+     *
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long pos = mTail.get();
+            int index = (int) (pos & mMask);
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mSlots[index] = e;
+                    mSequences.set(index, pos + 1); // 发布
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // 该槽位还未被消费，队列已满
+            }
+        }
+    }
+
+    /**
+     * 出队
+     *
+     * @return 队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long pos = mHead.get();
+            int index = (int) (pos & mMask);
+            long diff = mSequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    E e = (E) mSlots[index];
+                    mSlots[index] = null;
+                    mSequences.set(index, pos + mMask + 1); // 槽位留给下一轮入队
+                    return e;
+                }
+            } else if (diff < 0) {
+                return null; // 该槽位还未发布，队列为空
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+}
@@ -0,0 +1,51 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/19.
+ * 根据最近的响应时间估计第95百分位，用于决定对冲请求的发送时机
+ * <p/>
+ * 保留最近 WINDOW_SIZE 个样本，每收到 UPDATE_INTERVAL 个新样本重新排序计算一次
+ */
+public class RttEstimator {
+    private static final int WINDOW_SIZE = 256;
+    private static final int UPDATE_INTERVAL = 32;
+    private static final int MIN_SAMPLES = 20;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final long mSamples[] = new long[WINDOW_SIZE];
+    private final long mSorted[] = new long[WINDOW_SIZE];
+    private int mCount = 0;
+    private int mNext = 0;
+    private int mSinceUpdate = 0;
+
+    private volatile long mP95 = -1L;
+
+    public void record(long rtt) {
+        mLock.lock();
+        try {
+            mSamples[mNext] = rtt;
+            mNext = (mNext + 1) % WINDOW_SIZE;
+            if (mCount < WINDOW_SIZE) {
+                mCount++;
+            }
+            if (mCount >= MIN_SAMPLES && (++mSinceUpdate >= UPDATE_INTERVAL || mP95 < 0)) {
+                mSinceUpdate = 0;
+                System.arraycopy(mSamples, 0, mSorted, 0, mCount);
+                Arrays.sort(mSorted, 0, mCount);
+                mP95 = mSorted[(mCount * 95 - 1) / 100];
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 第95百分位的响应时间，单位毫秒；样本不足时返回-1
+     */
+    public long getP95() {
+        return mP95;
+    }
+}
@@ -0,0 +1,64 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Created by Noisyfox on 2015/3/21.
+ * 创建工作线程，启用虚拟线程后改为创建虚拟线程
+ * <p/>
+ * 虚拟线程需要 Java 21 以上的运行环境，通过反射获取，编译时不依赖新版本的API。
+ * 工作线程之间只使用 ReentrantLock/Condition 和阻塞IO同步，不会把虚拟线程固定在载体线程上
+ */
+public class Threads {
+    private static volatile ThreadFactory sVirtualFactory = null;
+
+    /**
+     * 启用虚拟线程，之后创建的工作线程都是虚拟线程
+     *
+     * @return 运行环境是否支持虚拟线程
+     */
+    public static boolean enableVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            sVirtualFactory = (ThreadFactory) factory.invoke(builder);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean isVirtual() {
+        return sVirtualFactory != null;
+    }
+
+    /**
+     * 创建一个未启动的工作线程
+     */
+    public static Thread newThread(Runnable runnable) {
+        ThreadFactory factory = sVirtualFactory;
+        if (factory == null) {
+            return new Thread(runnable);
+        }
+        return factory.newThread(runnable);
+    }
+
+    /**
+     * 为每个任务创建一个工作线程的线程池，未启用虚拟线程时复用空闲的线程
+     */
+    public static ExecutorService newExecutor() {
+        ThreadFactory factory = sVirtualFactory;
+        if (factory == null) {
+            return Executors.newCachedThreadPool();
+        }
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+}
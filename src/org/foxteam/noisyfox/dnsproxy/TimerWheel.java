@@ -0,0 +1,202 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/26.
+ * 哈希时间轮，客户端和服务器的超时、期限和空闲检测共用一个
+ * <p/>
+ * 定时器按到期的 tick 挂在对应格子的双向链表上，添加和取消都是 O(1)。
+ * 到期时间超过一圈的定时器在轮子转过时留在原处，直到所记录的 tick 到达。
+ * 轮子线程直接睡到下一个非空的格子，没有定时器时一直等待，不会定期醒来
+ * <p/>
+ * 到期的任务在轮子线程中执行，任务必须很快返回，耗时的工作应当交给其他线程
+ */
+public class TimerWheel {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 512; // 必须是2的幂
+
+    private static final TimerWheel sShared = new TimerWheel();
+
+    public static TimerWheel getShared() {
+        return sShared;
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mCondition = mLock.newCondition();
+    private final Timeout mBuckets[] = new Timeout[WHEEL_SIZE]; // 每格链表的哨兵
+    private final long mStartTime = System.nanoTime();
+    private long mCurrentTick = 0L; // 下一个要处理的 tick
+    private long mWakeTick = Long.MAX_VALUE; // 轮子线程等待处理的 tick，更早到期的定时器需要唤醒它
+    private int mCount = 0;
+
+    private final AtomicLong mFireCount = new AtomicLong(0L);
+
+    public TimerWheel() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Timeout head = new Timeout(null, 0L);
+            head.mPrev = head;
+            head.mNext = head;
+            mBuckets[i] = head;
+        }
+        Thread thread = new WorkerThread();
+        thread.setName("TimerWheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 在 delay 毫秒后执行 task，可以在任意线程调用
+     *
+     * @return 用于取消的句柄
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        mLock.lock();
+        try {
+            long nowTick = (System.nanoTime() - mStartTime) / TICK_NANOS;
+            if (mCount == 0) {
+                // 轮子空闲期间没有转动，从当前时间继续
+                mCurrentTick = nowTick;
+            }
+            long deadline = Math.max(nowTick + (TimeUnit.MILLISECONDS.toNanos(delay) + TICK_NANOS - 1) / TICK_NANOS,
+                    mCurrentTick);
+            Timeout timeout = new Timeout(task, deadline);
+            Timeout head = mBuckets[(int) (deadline & (WHEEL_SIZE - 1))];
+            timeout.mPrev = head.mPrev;
+            timeout.mNext = head;
+            head.mPrev.mNext = timeout;
+            head.mPrev = timeout;
+            mCount++;
+            if (deadline < mWakeTick) {
+                mCondition.signalAll();
+            }
+            return timeout;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.mPrev.mNext = timeout.mNext;
+        timeout.mNext.mPrev = timeout.mPrev;
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        mCount--;
+    }
+
+    @Override
+    public String toString() {
+        mLock.lock();
+        try {
+            return String.format("TimerWheel scheduled %d, fired %d", mCount, mFireCount.get());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;
+        private Timeout mPrev;
+        private Timeout mNext;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * @return 定时器已到期或已取消时返回false
+         */
+        public boolean cancel() {
+            mLock.lock();
+            try {
+                if (mNext == null) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    private class WorkerThread extends Thread {
+        @Override
+        public void run() {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            while (true) {
+                mLock.lock();
+                try {
+                    while (mCount == 0) {
+                        mWakeTick = Long.MAX_VALUE;
+                        mCondition.awaitUninterruptibly();
+                    }
+
+                    // 处理所有已经过去的 tick
+                    long lastTick = (System.nanoTime() - mStartTime) / TICK_NANOS - 1;
+                    while (mCurrentTick <= lastTick) {
+                        collectExpired(mCurrentTick, expired);
+                        mCurrentTick++;
+                    }
+
+                    if (expired.isEmpty() && mCount > 0) {
+                        long next = mCurrentTick;
+                        while (isEmpty(next) && next < mCurrentTick + WHEEL_SIZE) {
+                            next++;
+                        }
+                        mWakeTick = next;
+                        long wait = mStartTime + (next + 1) * TICK_NANOS - System.nanoTime();
+                        if (wait > 0) {
+                            mCondition.awaitNanos(wait);
+                        }
+                        mWakeTick = Long.MAX_VALUE;
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    mLock.unlock();
+                }
+
+                for (Timeout timeout : expired) {
+                    mFireCount.incrementAndGet();
+                    try {
+                        timeout.mTask.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                expired.clear();
+            }
+        }
+
+        /**
+         * 必须持有 mLock
+         */
+        private boolean isEmpty(long tick) {
+            Timeout head = mBuckets[(int) (tick & (WHEEL_SIZE - 1))];
+            return head.mNext == head;
+        }
+
+        /**
+         * 必须持有 mLock
+         */
+        private void collectExpired(long tick, List<Timeout> expired) {
+            Timeout head = mBuckets[(int) (tick & (WHEEL_SIZE - 1))];
+            Timeout timeout = head.mNext;
+            while (timeout != head) {
+                Timeout next = timeout.mNext;
+                if (timeout.mDeadline <= tick) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+}
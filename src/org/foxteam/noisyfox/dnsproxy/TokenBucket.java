@@ -0,0 +1,51 @@
+package org.foxteam.noisyfox.dnsproxy;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/15.
+ * 令牌桶限速器，令牌按固定速率补充，最多积攒 burst 个
+ */
+public class TokenBucket {
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final double mRatePerNano;
+    private final double mBurst;
+
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param burst         桶的容量
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Illegal rate " + ratePerSecond + " or burst " + burst);
+        }
+        mRatePerNano = ratePerSecond / 1000000000.0;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = System.nanoTime();
+    }
+
+    /**
+     * 取走一个令牌
+     *
+     * @return 没有可用的令牌时返回false
+     */
+    public boolean tryAcquire() {
+        mLock.lock();
+        try {
+            long now = System.nanoTime();
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRatePerNano);
+            mLastRefill = now;
+            if (mTokens < 1.0) {
+                return false;
+            }
+            mTokens -= 1.0;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package org.foxteam.noisyfox.dnsproxy;
 
+import org.json.simple.JSONObject;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 
 /**
  * Created by noisyfox on 15-2-27.
@@ -25,6 +30,67 @@ public class Utils {
         return totalLength;
     }
 
+    /**
+     * 读取配置文件中的整数项
+     *
+     * @return 配置项不存在时返回默认值，数值非法时返回null
+     */
+    public static Integer readConfigInt(JSONObject cfg, String key, int defaultValue, int min, int max) {
+        String v = (String) cfg.get(key);
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(v.trim());
+            if (value >= min && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        System.out.println("Illegal " + key + " " + v);
+        return null;
+    }
+
+    /**
+     * 解析 "地址"、"地址:端口" 或 "[IPv6地址]:端口" 形式的字符串
+     *
+     * @return 格式非法或地址无法解析时返回null
+     */
+    public static InetSocketAddress parseSocketAddress(String s, int defaultPort) {
+        s = s.trim();
+        String host = s;
+        int port = defaultPort;
+        int colon = s.lastIndexOf(':');
+        if (s.startsWith("[")) {
+            int close = s.indexOf(']');
+            if (close < 0) {
+                return null;
+            }
+            host = s.substring(1, close);
+            colon = close + 1 < s.length() && s.charAt(close + 1) == ':' ? close + 1 : -1;
+        } else if (colon >= 0 && s.indexOf(':') != colon) {
+            colon = -1; // 不带括号的IPv6地址
+        } else if (colon >= 0) {
+            host = s.substring(0, colon);
+        }
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(s.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (port <= 0 || port >= 65536) {
+                return null;
+            }
+        }
+
+        try {
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
     public static boolean SHOW_VERBOSE = false;
 
     public static void showVerbose(String verbose) {
@@ -1,22 +1,77 @@
 package org.foxteam.noisyfox.dnsproxy.client;
 
 import org.foxteam.noisyfox.dnsproxy.Application;
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+import org.foxteam.noisyfox.dnsproxy.Threads;
+import org.foxteam.noisyfox.dnsproxy.Utils;
+import org.foxteam.noisyfox.dnsproxy.dns.AnswerCache;
+import org.foxteam.noisyfox.dnsproxy.dns.CacheSnapshot;
+import org.foxteam.noisyfox.dnsproxy.dns.PrefixSet;
+import org.foxteam.noisyfox.dnsproxy.dns.SuffixTrie;
 import org.json.simple.JSONObject;
 
 import java.io.*;
 import java.net.*;
 import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Noisyfox on 2015/2/24.
  */
 public class Client implements Application {
 
-    private DatagramChannel mLocalChannel;
+    private DatagramChannel mLocalChannels[];
     private InetAddress mServerAddress;
+    private InetAddress mListenAddress = null; // 为null时监听所有地址
     private int mServerPort = 7373;
+    private int mTunnelCount = 1;
+    private int mListenerCount = 1; // 为0时每个处理器一个
+    private int mCacheSize = 1024;
+    private int mNegativeCacheSize = 256;
+    private int mNegativeCacheMaxTtl = 300;
+    private int mPrefetchMinHits = 3; // 为0时不预取
+    private int mPrefetchThreshold = 10;
+    private int mPrefetchRate = 10;
+    private int mStaleMaxAge = 24 * 60 * 60; // 为0时不使用过期应答
+    private int mStaleDeadline = 1800; // RFC 8767 建议的客户端响应时限
+    private int mRetransmitTimeout = 1000; // 为0时不重发
+    private int mRetransmitCount = 2;
+    private int mRequestDeadline = 3000; // 为0时不限制
+    private boolean mHedgeEnabled = false;
+    private int mHedgeMinDelay = 20;
+    private boolean mStandbyEnabled = false;
+    private int mQueueSize = 1024;
+    private RequestFlinger.OverflowPolicy mOverflowPolicy = RequestFlinger.OverflowPolicy.DROP_NEWEST;
+    private File mSnapshotFile = null; // 为null时不保存缓存快照
+    private int mSnapshotInterval = 300;
+    private AnswerCache mAnswerCache = null;
+    private File mDirectListFile = null; // 为null时不分流
+    private InetSocketAddress mDirectResolver = null;
+    private SuffixTrie mDirectRoutes = null;
+    private DatagramChannel mDirectChannel = null;
+    private boolean mRaceEnabled = false;
+    private File mRaceFilterFile = null;
+    private PrefixSet mRaceFilter = null;
     private ClientThread mThread = null;
 
+    private static final long STANDBY_RETRY_INTERVAL = 3000L;
+    private static final long RECONNECT_INTERVAL = 200L;
+    private static final long STANDBY_CHECK_INTERVAL = 10000L; // 定期检查备用隧道是否已被服务器关闭
+    private static final long STANDBY_MAX_IDLE = 5 * 60 * 1000L; // 超过该时间的备用隧道可能已被NAT丢弃，重新建立
+
+    // 预先完成握手的备用隧道
+    private final ReentrantLock mStandbyLock = new ReentrantLock();
+    private final Condition mStandbyCondition = mStandbyLock.newCondition();
+    private ClientWorker mStandbyWorker = null;
+
+    // 隧道建立（连接+握手）耗时统计
+    private final AtomicLong mEstablishCount = new AtomicLong(0L);
+    private final AtomicLong mEstablishTimeTotal = new AtomicLong(0L);
+    private final AtomicLong mEstablishTimeMax = new AtomicLong(0L);
+
     private boolean parseArgs(String args[]) {
         for (int i = 1; i < args.length; i++) {
             String arg = args[i];
@@ -89,60 +144,528 @@ public class Client implements Application {
             }
         }
 
+        String l = (String) cfg.get("listen");
+        if (l != null) {
+            try {
+                mListenAddress = InetAddress.getByName(l);
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+                System.out.println("Illegal listen address " + l);
+                return false;
+            }
+        }
+
+        String directList = (String) cfg.get("direct_list");
+        if (directList != null && !directList.isEmpty()) {
+            mDirectListFile = new File(directList);
+        }
+        mRaceEnabled = "true".equals(cfg.get("race"));
+        String raceFilter = (String) cfg.get("race_filter");
+        if (raceFilter != null && !raceFilter.isEmpty()) {
+            mRaceFilterFile = new File(raceFilter);
+        }
+        if (mDirectListFile != null || mRaceEnabled) {
+            String resolver = (String) cfg.get("direct_resolver");
+            if (resolver == null) {
+                System.out.println("direct_resolver is required by direct_list and race");
+                return false;
+            }
+            mDirectResolver = Utils.parseSocketAddress(resolver, 53);
+            if (mDirectResolver == null) {
+                System.out.println("Illegal direct resolver " + resolver);
+                return false;
+            }
+        }
+
+        Integer t = Utils.readConfigInt(cfg, "tunnels", mTunnelCount, 1, 64);
+        if (t == null) {
+            return false;
+        }
+        mTunnelCount = t;
+
+        Integer n = Utils.readConfigInt(cfg, "listeners", mListenerCount, 0, 64);
+        if (n == null) {
+            return false;
+        }
+        mListenerCount = n == 0 ? Runtime.getRuntime().availableProcessors() : n;
+
+        Integer c = Utils.readConfigInt(cfg, "cache_size", mCacheSize, 0, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mCacheSize = c;
+
+        c = Utils.readConfigInt(cfg, "negative_cache_size", mNegativeCacheSize, 0, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mNegativeCacheSize = c;
+
+        c = Utils.readConfigInt(cfg, "negative_cache_max_ttl", mNegativeCacheMaxTtl, 0, 24 * 60 * 60);
+        if (c == null) {
+            return false;
+        }
+        mNegativeCacheMaxTtl = c;
+
+        c = Utils.readConfigInt(cfg, "prefetch_min_hits", mPrefetchMinHits, 0, Integer.MAX_VALUE);
+        if (c == null) {
+            return false;
+        }
+        mPrefetchMinHits = c;
+
+        c = Utils.readConfigInt(cfg, "prefetch_threshold", mPrefetchThreshold, 1, 100);
+        if (c == null) {
+            return false;
+        }
+        mPrefetchThreshold = c;
+
+        c = Utils.readConfigInt(cfg, "prefetch_rate", mPrefetchRate, 1, 10000);
+        if (c == null) {
+            return false;
+        }
+        mPrefetchRate = c;
+
+        c = Utils.readConfigInt(cfg, "stale_max_age", mStaleMaxAge, 0, 7 * 24 * 60 * 60);
+        if (c == null) {
+            return false;
+        }
+        mStaleMaxAge = c;
+
+        // 超过 PendingQueries 的重发时间后等待者可能被清理，时限不能比它长
+        c = Utils.readConfigInt(cfg, "stale_deadline", mStaleDeadline, 1, 2000);
+        if (c == null) {
+            return false;
+        }
+        mStaleDeadline = c;
+
+        c = Utils.readConfigInt(cfg, "retransmit_timeout", mRetransmitTimeout, 0, 60 * 1000);
+        if (c == null) {
+            return false;
+        }
+        mRetransmitTimeout = c;
+
+        c = Utils.readConfigInt(cfg, "retransmit_count", mRetransmitCount, 0, 16);
+        if (c == null) {
+            return false;
+        }
+        mRetransmitCount = c;
+
+        c = Utils.readConfigInt(cfg, "request_deadline", mRequestDeadline, 0, 60 * 1000);
+        if (c == null) {
+            return false;
+        }
+        mRequestDeadline = c;
+
+        String hedge = (String) cfg.get("hedge");
+        if (hedge != null) {
+            mHedgeEnabled = "true".equals(hedge);
+        }
+
+        c = Utils.readConfigInt(cfg, "hedge_min_delay", mHedgeMinDelay, 0, 60 * 1000);
+        if (c == null) {
+            return false;
+        }
+        mHedgeMinDelay = c;
+
+        String snapshot = (String) cfg.get("snapshot_file");
+        if (snapshot != null && !snapshot.isEmpty()) {
+            mSnapshotFile = new File(snapshot);
+        }
+
+        c = Utils.readConfigInt(cfg, "snapshot_interval", mSnapshotInterval, 0, 24 * 60 * 60);
+        if (c == null) {
+            return false;
+        }
+        mSnapshotInterval = c;
+
+        c = Utils.readConfigInt(cfg, "queue_size", mQueueSize, 1, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mQueueSize = c;
+
+        String o = (String) cfg.get("overflow_policy");
+        if (o != null) {
+            try {
+                mOverflowPolicy = RequestFlinger.OverflowPolicy.valueOf(o.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Illegal overflow policy " + o);
+                return false;
+            }
+        }
+
+        String standby = (String) cfg.get("standby");
+        if (standby != null) {
+            mStandbyEnabled = "true".equals(standby);
+        }
+
+        // 隧道的工作线程改为虚拟线程
+        if ("true".equals(cfg.get("virtual_threads")) && !Threads.enableVirtual()) {
+            System.out.println("Virtual threads require Java 21 or later");
+            return false;
+        }
+
         return true;
     }
 
     private boolean listenDNSPort() {
-        // 开始监听本地端口
-        DatagramChannel localChannel = null;
+        // 开始监听本地端口，多个监听通道时通过 SO_REUSEPORT 共享同一端口，由内核分发请求
+        SocketOption<Boolean> reusePort = null;
+        if (mListenerCount > 1) {
+            reusePort = getReusePortOption();
+            if (reusePort == null) {
+                System.out.println("SO_REUSEPORT is not supported, fall back to single listener");
+                mListenerCount = 1;
+            }
+        }
+
+        DatagramChannel localChannels[] = new DatagramChannel[mListenerCount];
         try {
-            localChannel = DatagramChannel.open();
-            localChannel.socket().bind(new InetSocketAddress(53));
-        } catch (IOException e) {
-            e.printStackTrace();
-            if (localChannel != null) {
-                try {
-                    localChannel.disconnect();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
+            for (int i = 0; i < localChannels.length; i++) {
+                localChannels[i] = DatagramChannel.open();
+                if (reusePort != null) {
+                    localChannels[i].setOption(reusePort, true);
                 }
+                localChannels[i].socket().bind(new InetSocketAddress(mListenAddress, 53));
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeChannels(localChannels);
             return false;
         }
-        mLocalChannel = localChannel;
+        mLocalChannels = localChannels;
 
         return true;
     }
 
+    /**
+     * SO_REUSEPORT 在 Java 9 中才加入 StandardSocketOptions，低版本中返回null
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static void closeChannels(DatagramChannel channels[]) {
+        for (DatagramChannel channel : channels) {
+            if (channel == null) {
+                continue;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void closeDNSPort() {
-        if (mLocalChannel == null) {
+        if (mDirectChannel != null) {
+            closeChannels(new DatagramChannel[]{mDirectChannel});
+            mDirectChannel = null;
+        }
+
+        if (mLocalChannels == null) {
             return;
         }
 
+        closeChannels(mLocalChannels);
+
+        mLocalChannels = null;
+    }
+
+    /**
+     * 载入分流列表，并连接本地解析器
+     */
+    private boolean openDirectRoute() {
+        if (mDirectResolver == null) {
+            return true;
+        }
+
+        if (mDirectListFile != null) {
+            long start = System.currentTimeMillis();
+            try {
+                mDirectRoutes = SuffixTrie.load(mDirectListFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Unable to load direct list " + mDirectListFile);
+                return false;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return false;
+            }
+            System.out.println(String.format("Loaded %d direct suffix(es) in %dms, resolve by %s",
+                    mDirectRoutes.size(), System.currentTimeMillis() - start, mDirectResolver));
+        }
+
+        if (mRaceEnabled && mRaceFilterFile != null) {
+            try {
+                mRaceFilter = PrefixSet.load(mRaceFilterFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Unable to load race filter " + mRaceFilterFile);
+                return false;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return false;
+            }
+            System.out.println(String.format("Loaded %d race filter prefix(es)", mRaceFilter.size()));
+        }
+
         try {
-            mLocalChannel.disconnect();
+            mDirectChannel = DatagramChannel.open();
+            mDirectChannel.connect(mDirectResolver);
         } catch (IOException e) {
             e.printStackTrace();
+            if (mDirectChannel != null) {
+                closeChannels(new DatagramChannel[]{mDirectChannel});
+                mDirectChannel = null;
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 创建应答缓存，并载入上次保存的快照
+     */
+    private void createAnswerCache() {
+        if (mCacheSize <= 0 && mNegativeCacheSize <= 0) {
+            return;
+        }
+        mAnswerCache = new AnswerCache(mCacheSize, mNegativeCacheSize, mNegativeCacheMaxTtl);
+        if (mStaleMaxAge > 0) {
+            mAnswerCache.enableServeStale(mStaleMaxAge);
+        }
+
+        if (mSnapshotFile != null) {
+            try {
+                int count = CacheSnapshot.load(mAnswerCache, mSnapshotFile);
+                System.out.println(String.format("Loaded %d cached answer(s) from %s", count, mSnapshotFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Unable to load cache snapshot " + mSnapshotFile);
+            }
         }
+    }
 
-        mLocalChannel = null;
+    private void saveSnapshot() {
+        if (mAnswerCache == null || mSnapshotFile == null) {
+            return;
+        }
+        try {
+            int count = CacheSnapshot.save(mAnswerCache, mSnapshotFile);
+            Utils.showVerbose(String.format("Saved %d cached answer(s) to %s", count, mSnapshotFile));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Unable to save cache snapshot " + mSnapshotFile);
+        }
     }
 
     private void startProxy() {
-        RequestFlinger requestFlinger;
+        AnswerCache answerCache = mAnswerCache;
+        RequestFlinger requestFlinger = new RequestFlinger(mLocalChannels, answerCache, mQueueSize, mOverflowPolicy);
+        if (answerCache != null && mPrefetchMinHits > 0) {
+            answerCache.enablePrefetch(mPrefetchMinHits, mPrefetchThreshold);
+            requestFlinger.enablePrefetch(mPrefetchRate);
+        }
+        if (answerCache != null && mStaleMaxAge > 0) {
+            requestFlinger.enableServeStale(mStaleDeadline);
+        }
+        if (mRetransmitTimeout > 0 && mRetransmitCount > 0 || mRequestDeadline > 0 || mHedgeEnabled) {
+            requestFlinger.enableRetransmit(mRetransmitCount > 0 ? mRetransmitTimeout : 0, mRetransmitCount,
+                    mRequestDeadline, mHedgeEnabled, mHedgeMinDelay);
+        }
+        if (mDirectChannel != null) {
+            requestFlinger.enableDirectRoute(mDirectRoutes, mDirectChannel);
+            if (mRaceEnabled) {
+                requestFlinger.enableRace(mRaceFilter);
+            }
+        }
+        requestFlinger.start();
+
+        // 每条隧道由单独的线程维护，某条隧道断开时只重建该隧道，其余隧道继续服务
+        TunnelThread tunnels[] = new TunnelThread[mTunnelCount];
+        for (int i = 0; i < tunnels.length; i++) {
+            tunnels[i] = new TunnelThread(requestFlinger);
+            tunnels[i].start();
+        }
+        StandbyThread standbyThread = null;
+        if (mStandbyEnabled) {
+            standbyThread = new StandbyThread(requestFlinger);
+            standbyThread.start();
+        }
+        SnapshotThread snapshotThread = null;
+        if (answerCache != null && mSnapshotFile != null && mSnapshotInterval > 0) {
+            snapshotThread = new SnapshotThread();
+            snapshotThread.start();
+        }
+
+        try {
+            for (TunnelThread tunnel : tunnels) {
+                tunnel.join();
+            }
+        } catch (InterruptedException ignored) {
+        }
+
+        for (TunnelThread tunnel : tunnels) {
+            tunnel.interrupt();
+        }
+        for (TunnelThread tunnel : tunnels) {
+            try {
+                tunnel.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        if (standbyThread != null) {
+            standbyThread.interrupt();
+            try {
+                standbyThread.join();
+            } catch (InterruptedException ignored) {
+            }
+            ClientWorker standby = takeStandby();
+            if (standby != null) {
+                standby.close();
+            }
+        }
+        if (snapshotThread != null) {
+            snapshotThread.interrupt();
+            try {
+                snapshotThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        requestFlinger.stop();
+
+        if (answerCache != null) {
+            System.out.println(answerCache);
+            if (requestFlinger.getPrefetchCount() > 0) {
+                System.out.println("Prefetched " + requestFlinger.getPrefetchCount() + " time(s)");
+            }
+        }
+        System.out.println(PacketPool.getShared());
+        if (requestFlinger.getDirectCount() > 0) {
+            System.out.println("Resolved " + requestFlinger.getDirectCount() + " request(s) directly");
+        }
+        if (requestFlinger.getRetransmitCount() > 0 || requestFlinger.getHedgeCount() > 0
+                || requestFlinger.getReplayCount() > 0 || requestFlinger.getExpiredCount() > 0) {
+            System.out.println(String.format("Retransmitted %d, hedged %d, replayed %d, expired %d request(s)",
+                    requestFlinger.getRetransmitCount(), requestFlinger.getHedgeCount(),
+                    requestFlinger.getReplayCount(), requestFlinger.getExpiredCount()));
+        }
+        if (requestFlinger.getRacer() != null) {
+            System.out.println(requestFlinger.getRacer());
+        }
+        if (requestFlinger.getOverflowCount() > 0) {
+            System.out.println("Request queue overflowed " + requestFlinger.getOverflowCount() + " time(s)");
+        }
+        long establishCount = mEstablishCount.get();
+        if (establishCount > 0) {
+            System.out.println(String.format("Tunnel established %d time(s), avg %dms, max %dms",
+                    establishCount, mEstablishTimeTotal.get() / establishCount, mEstablishTimeMax.get()));
+        }
+    }
+
+    /**
+     * 连接服务器并完成握手
+     *
+     * @return 握手完成的Worker，失败时返回null
+     */
+    private ClientWorker connectServer(RequestFlinger requestFlinger) {
+        long startTime = System.currentTimeMillis();
+        Socket serverConnection;
         try {
-            requestFlinger = new RequestFlinger(mLocalChannel);
-        } catch (UnknownHostException e) {
+            serverConnection = new Socket(mServerAddress, mServerPort);
+        } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+
+        ClientWorker clientWorker = new ClientWorker(serverConnection, requestFlinger);
+        if (!clientWorker.handshake()) {
+            clientWorker.close();
+            return null;
+        }
+
+        long establishTime = System.currentTimeMillis() - startTime;
+        mEstablishCount.incrementAndGet();
+        mEstablishTimeTotal.addAndGet(establishTime);
+        while (true) {
+            long max = mEstablishTimeMax.get();
+            if (establishTime <= max || mEstablishTimeMax.compareAndSet(max, establishTime)) {
+                break;
+            }
+        }
+        Utils.showVerbose("Tunnel established in " + establishTime + "ms");
+
+        return clientWorker;
+    }
+
+    /**
+     * 取走备用隧道，没有准备好的备用隧道时返回null
+     */
+    private ClientWorker takeStandby() {
+        mStandbyLock.lock();
+        try {
+            ClientWorker worker = mStandbyWorker;
+            mStandbyWorker = null;
+            mStandbyCondition.signalAll();
+            return worker;
+        } finally {
+            mStandbyLock.unlock();
+        }
+    }
+
+    /**
+     * 始终保持一条握手完成的备用隧道，被取走后立即建立新的备用隧道。
+     * 等待期间定期检查备用隧道，已失效或空闲太久的隧道被丢弃并重新建立
+     */
+    private void runStandby(RequestFlinger requestFlinger) {
+        while (!Thread.currentThread().isInterrupted()) {
+            ClientWorker worker = connectServer(requestFlinger);
+            if (worker == null) {
+                try {
+                    Thread.sleep(STANDBY_RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            long standbyTime = System.currentTimeMillis();
+            mStandbyLock.lock();
             try {
-                mLocalChannel.disconnect();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+                mStandbyWorker = worker;
+                while (mStandbyWorker != null) {
+                    if (mStandbyCondition.await(STANDBY_CHECK_INTERVAL, TimeUnit.MILLISECONDS)
+                            || mStandbyWorker != worker) {
+                        continue; // 被唤醒或已被取走
+                    }
+                    if (System.currentTimeMillis() - standbyTime >= STANDBY_MAX_IDLE || !worker.probe()) {
+                        Utils.showVerbose("Standby tunnel expired or lost, reconnecting");
+                        mStandbyWorker = null;
+                        worker.close();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mStandbyLock.unlock();
             }
-            return;
         }
-        requestFlinger.start();
+    }
 
+    /**
+     * 维护一条到服务器的隧道，Worker退出后在有新请求时重新连接
+     */
+    private void runTunnel(RequestFlinger requestFlinger) {
         while (true) {
             try {
                 requestFlinger.waitWhileRequestEmpty();// 等待本机发出请求
@@ -150,24 +673,41 @@ public class Client implements Application {
                 break;
             }
 
-            // 连接服务器
-            try {
-                Socket mServerConnection = new Socket(mServerAddress, mServerPort);
-                ClientWorker clientWorker = new ClientWorker(mServerConnection, requestFlinger);
-                clientWorker.start();
+            // 优先使用备用隧道，没有时连接服务器。服务器重启等情况下备用隧道可能与原隧道一起失效，使用前先检查
+            ClientWorker clientWorker = takeStandby();
+            if (clientWorker != null && !clientWorker.probe()) {
+                Utils.showVerbose("Standby tunnel lost, discarded");
+                clientWorker.close();
+                clientWorker = null;
+            }
+            if (clientWorker == null) {
+                clientWorker = connectServer(requestFlinger);
+            }
+            if (clientWorker == null) {
+                // 连接失败时稍后重试，避免待重发的请求使隧道线程空转
                 try {
-                    clientWorker.join();
+                    Thread.sleep(RECONNECT_INTERVAL);
                 } catch (InterruptedException e) {
                     break;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } else {
+                Thread workerThread = Threads.newThread(clientWorker);
+                workerThread.start();
+                try {
+                    workerThread.join();
+                } catch (InterruptedException e) {
+                    workerThread.interrupt();
+                    try {
+                        workerThread.join();
+                    } catch (InterruptedException ignored) {
+                    }
+                    break;
+                }
             }
             if (Thread.interrupted()) {
                 break;
             }
         }
-        requestFlinger.stop();
     }
 
     @Override
@@ -184,11 +724,23 @@ public class Client implements Application {
             return false;
         }
 
-        System.out.println(String.format("Client connect to %s:%d", mServerAddress.getHostAddress(), mServerPort));
+        System.out.println(String.format("Client listen on %s, connect to %s:%d with %d tunnel(s)",
+                mListenAddress == null ? "*" : mListenAddress.getHostAddress(),
+                mServerAddress.getHostAddress(), mServerPort, mTunnelCount));
 
         if (!listenDNSPort()) {
             return false;
         }
+        if (mListenerCount > 1) {
+            System.out.println(String.format("Listening with %d SO_REUSEPORT socket(s)", mListenerCount));
+        }
+
+        if (!openDirectRoute()) {
+            closeDNSPort();
+            return false;
+        }
+
+        createAnswerCache();
 
         return true;
     }
@@ -227,6 +779,7 @@ public class Client implements Application {
     @Override
     public boolean destroy() {
         closeDNSPort();
+        saveSnapshot();
         return true;
     }
 
@@ -236,4 +789,47 @@ public class Client implements Application {
             startProxy();
         }
     }
+
+    private class TunnelThread extends Thread {
+        private final RequestFlinger mRequestFlinger;
+
+        public TunnelThread(RequestFlinger requestFlinger) {
+            mRequestFlinger = requestFlinger;
+        }
+
+        @Override
+        public void run() {
+            runTunnel(mRequestFlinger);
+        }
+    }
+
+    private class StandbyThread extends Thread {
+        private final RequestFlinger mRequestFlinger;
+
+        public StandbyThread(RequestFlinger requestFlinger) {
+            mRequestFlinger = requestFlinger;
+        }
+
+        @Override
+        public void run() {
+            runStandby(mRequestFlinger);
+        }
+    }
+
+    /**
+     * 定期保存缓存快照，异常退出时最多丢失一个周期内的缓存
+     */
+    private class SnapshotThread extends Thread {
+        @Override
+        public void run() {
+            while (!interrupted()) {
+                try {
+                    Thread.sleep(mSnapshotInterval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                saveSnapshot();
+            }
+        }
+    }
 }
@@ -30,6 +30,8 @@ public class ClientHandshakeMachine extends CheckPointMachine {
 
     private AESInputStream mAESIn;
     private AESOutputStream mAESOut;
+    private byte mKey[];
+    private byte mIV[];
 
     public ClientHandshakeMachine(InputStream inputStream, OutputStream outputStream, DH dh) {
         super(STAT_INIT);
@@ -120,6 +122,8 @@ public class ClientHandshakeMachine extends CheckPointMachine {
         byte S[] = HKDF.doHKDF(ikm, 128 / 8); // 导出密钥
         byte IV[] = HKDF.doHKDF_IV(ikm, 128 / 8); // 导出初始向量
 
+        mKey = S;
+        mIV = IV;
         mAESIn = new AESInputStream(mInput, S, IV);
         mAESOut = new AESOutputStream(mOutput, S, IV);
     }
@@ -193,4 +197,15 @@ public class ClientHandshakeMachine extends CheckPointMachine {
     public AESOutputStream getEncryptedOutputStream() {
         return mAESOut;
     }
+
+    /**
+     * 协商出的密钥，供不使用流的 AESFrameCodec 使用
+     */
+    public byte[] getKey() {
+        return mKey;
+    }
+
+    public byte[] getIV() {
+        return mIV;
+    }
 }
@@ -1,5 +1,6 @@
 package org.foxteam.noisyfox.dnsproxy.client;
 
+import org.foxteam.noisyfox.dnsproxy.Threads;
 import org.foxteam.noisyfox.dnsproxy.Utils;
 import org.foxteam.noisyfox.dnsproxy.crypto.DH;
 import org.foxteam.noisyfox.dnsproxy.dns.UDPDataFrame;
@@ -8,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,10 +17,14 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * Created by Noisyfox on 2015/2/24.
  */
-public class ClientWorker extends Thread {
+public class ClientWorker implements Runnable {
 
     private final Socket mServerSocket;
     private final RequestFlinger mRequestFlinger;
+    private RequestFlinger.Tunnel mTunnel;
+
+    private OutputStream mEncryptedOutput;
+    private InputStream mEncryptedInput;
 
     public ClientWorker(Socket serverSocket, RequestFlinger requestFlinger) {
         mServerSocket = serverSocket;
@@ -30,16 +36,17 @@ public class ClientWorker extends Thread {
         try {
             doJob();
         } finally {
-            try {
-                mServerSocket.close(); // 确保连接关闭
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            close(); // 确保连接关闭
         }
         Utils.showVerbose("ClientWorker done!");
     }
 
-    private void doJob() {
+    /**
+     * 与服务器完成加密握手，可以在启动Worker之前调用，以便预先建立隧道
+     *
+     * @return 握手是否成功，失败时调用者负责关闭连接
+     */
+    public boolean handshake() {
         OutputStream outputStream;
         InputStream inputStream;
         try {
@@ -47,7 +54,7 @@ public class ClientWorker extends Thread {
             inputStream = mServerSocket.getInputStream();
         } catch (IOException e) {
             e.printStackTrace();
-            return;
+            return false;
         }
 
         // 首先，协商加密
@@ -61,19 +68,58 @@ public class ClientWorker extends Thread {
         boolean handshakeSuccess = handshakeMachine.start();
 
         if (!handshakeSuccess) {
-            return;
+            return false;
         }
 
         Utils.showVerbose("ClientWorker handshake success!");
         // 握手完成，开始加密传输
 
-        outputStream = handshakeMachine.getEncryptedOutputStream();
-        inputStream = handshakeMachine.getEncrpytedInputStream();
+        mEncryptedOutput = handshakeMachine.getEncryptedOutputStream();
+        mEncryptedInput = handshakeMachine.getEncrpytedInputStream();
+        return true;
+    }
+
+    /**
+     * 检查握手完成但尚未启动的连接是否仍然有效。服务器只会响应请求，
+     * 空闲的连接上读到任何数据、连接已关闭或出错都视为失效
+     */
+    public boolean probe() {
+        try {
+            mServerSocket.setSoTimeout(1);
+            try {
+                mServerSocket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                mServerSocket.setSoTimeout(0);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void doJob() {
+        if (mEncryptedOutput == null && !handshake()) {
+            return;
+        }
+
+        OutputStream outputStream = mEncryptedOutput;
+        InputStream inputStream = mEncryptedInput;
 
         // 启动请求和响应线程，本线程成为监控线程，如果请求或响应线程出错，
-        // 则负责结束整个ClientWorker，此时主线程会重新启动新的Worker
-        Thread requestThread = new RequestThread(outputStream);
-        Thread respondThread = new RespondThread(inputStream);
+        // 则负责结束整个ClientWorker，此时对应的隧道线程会重新启动新的Worker
+        mTunnel = mRequestFlinger.registerTunnel();
+        Thread requestThread = Threads.newThread(new RequestThread(outputStream));
+        Thread respondThread = Threads.newThread(new RespondThread(inputStream));
         mTreadLock.lock();
         try {
             requestThread.start();
@@ -81,13 +127,13 @@ public class ClientWorker extends Thread {
 
             try {
                 mThreadCondition.await();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } catch (InterruptedException ignored) {
             }
         } finally {
             requestThread.interrupt();
             respondThread.interrupt();
             mTreadLock.unlock();
+            close(); // 使阻塞在读写上的线程退出
             try {
                 requestThread.join();
             } catch (InterruptedException e) {
@@ -98,6 +144,8 @@ public class ClientWorker extends Thread {
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            // 两个线程都退出后再注销隧道，避免重发的请求又被本隧道取走
+            mRequestFlinger.unregisterTunnel(mTunnel);
         }
     }
 
@@ -107,7 +155,7 @@ public class ClientWorker extends Thread {
     /**
      * 负责从RequestFlinger获取请求并发送至服务器
      */
-    private class RequestThread extends Thread {
+    private class RequestThread implements Runnable {
         private final OutputStream mOut;
 
         public RequestThread(OutputStream out) {
@@ -131,9 +179,9 @@ public class ClientWorker extends Thread {
 
         private void doJob() {
             UDPDataFrame frame = new UDPDataFrame();
-            while (!interrupted()) {
+            while (!Thread.interrupted()) {
                 try {
-                    mRequestFlinger.pollRequestOrWait(frame);
+                    mRequestFlinger.pollRequestOrWait(frame, mTunnel);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                     return;
@@ -154,7 +202,7 @@ public class ClientWorker extends Thread {
     /**
      * 负责从服务器获取Respond并提交给RequestFlinger
      */
-    private class RespondThread extends Thread {
+    private class RespondThread implements Runnable {
         private final InputStream mIn;
 
         public RespondThread(InputStream in) {
@@ -178,7 +226,7 @@ public class ClientWorker extends Thread {
 
         private void doJob() {
             UDPDataFrame frame = new UDPDataFrame();
-            while (!interrupted()) {
+            while (!Thread.interrupted()) {
                 try {
                     int count = frame.readFromStream(mIn);
                     if (count == -1) {
@@ -189,13 +237,13 @@ public class ClientWorker extends Thread {
                     return;
                 }
 
-                if (interrupted()) {
+                if (Thread.interrupted()) {
                     return;
                 }
 
                 Utils.showVerbose("Server respond! Length:" + frame.getDataLength() + " port:" + frame.getPort());
 
-                mRequestFlinger.queueRespondAndNotify(frame);
+                mRequestFlinger.queueRespondAndNotify(frame, mTunnel);
             }
         }
     }
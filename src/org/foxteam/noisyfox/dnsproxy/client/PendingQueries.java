@@ -0,0 +1,433 @@
+package org.foxteam.noisyfox.dnsproxy.client;
+
+import org.foxteam.noisyfox.dnsproxy.RttEstimator;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/10.
+ * 正在等待服务器响应的问题表，相同问题的请求只通过隧道发送一次，
+ * 响应到达后分发给所有等待者
+ * <p/>
+ * 经隧道发出的请求保留一份副本，迟迟没有响应时由 collectResends 取出重发或对冲，
+ * 超过期限仍没有响应时由 collectExpired 取出，向等待者返回失败
+ */
+public class PendingQueries {
+    private static final long PENDING_TIMEOUT = 2000L; // 超过该时间没有响应则允许重新发送
+    // 经隧道发出的请求由 collectExpired 按 request_deadline 清理，该值只是没有设置期限时的上限，不小于期限的最大值
+    private static final long MAX_TRACK_TIME = 60000L;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    // 按加入时间排序，便于从头部清理超时的问题
+    private final LinkedHashMap<String, PendingQuery> mQueries = new LinkedHashMap<String, PendingQuery>();
+    private final RttEstimator mRtt = new RttEstimator();
+    private volatile int mMaxAttempts = 1; // collectResends 最多发送的次数，用完后由 join 按原来的方式重新发送
+
+    /**
+     * 设置自动重发的最多发送次数，不自动重发时为1
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * 登记一个请求
+     *
+     * @return 已有相同的问题在等待响应时返回true，此时请求不需要再发送；
+     * 否则返回false，调用者应当把请求发送给服务器
+     */
+    public boolean join(String key, SocketAddress requester, int transactionId) {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            purgeExpired(now);
+
+            PendingQuery query = mQueries.get(key);
+            if (query != null && (query.mRequest != null && query.mAttempts < mMaxAttempts
+                    || now - query.mSendTime < PENDING_TIMEOUT)) {
+                // 还能自动重发的请求由 collectResends 负责重发，这里只增加等待者
+                query.addWaiter(requester, transactionId, now);
+                return true;
+            }
+
+            if (query == null) {
+                query = new PendingQuery();
+            } else {
+                // 之前发出的请求迟迟没有响应，重新发送，原有的等待者继续等待
+                mQueries.remove(key);
+            }
+            query.mSendTime = now;
+            query.addWaiter(requester, transactionId, now);
+            mQueries.put(key, query);
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 登记一个没有等待者的预取请求，预取期间到来的相同请求会合并到该问题上
+     *
+     * @return 已有相同的问题在等待响应时返回false，此时不需要预取
+     */
+    public boolean prefetch(String key) {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            purgeExpired(now);
+
+            PendingQuery query = mQueries.get(key);
+            if (query != null && now - query.mSendTime < PENDING_TIMEOUT) {
+                return false;
+            }
+
+            if (query == null) {
+                query = new PendingQuery();
+            } else {
+                mQueries.remove(key);
+            }
+            query.mSendTime = now;
+            mQueries.put(key, query);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 记录经隧道发出的请求，用于之后的重发
+     */
+    public void setRequest(String key, byte data[], int offset, int length, SocketAddress requester) {
+        mLock.lock();
+        try {
+            PendingQuery query = mQueries.get(key);
+            if (query == null) {
+                return;
+            }
+            if (query.mRequest == null) {
+                query.mRequest = new byte[length];
+                System.arraycopy(data, offset, query.mRequest, 0, length);
+                query.mRequester = requester;
+                query.mFirstSendTime = query.mSendTime;
+            }
+            query.mAttempts++;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 记录请求由哪条隧道发出，对冲和重发时优先选择其他隧道
+     */
+    public void setTunnel(String key, RequestFlinger.Tunnel tunnel) {
+        mLock.lock();
+        try {
+            PendingQuery query = mQueries.get(key);
+            if (query != null) {
+                query.mTunnel = tunnel;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 该问题是否正在等待响应
+     */
+    public boolean contains(String key) {
+        mLock.lock();
+        try {
+            return mQueries.containsKey(key);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 问题已得到响应，取出所有等待者
+     *
+     * @param sampleRtt 是否把该响应的耗时计入响应时间估计，只有隧道的响应才需要
+     * @return 该问题没有在等待时返回null，预取的问题没有等待者时返回空列表
+     */
+    public List<Waiter> complete(String key, boolean sampleRtt) {
+        long now = System.currentTimeMillis();
+        PendingQuery query;
+        mLock.lock();
+        try {
+            query = mQueries.remove(key);
+        } finally {
+            mLock.unlock();
+        }
+        if (query == null) {
+            return null;
+        }
+        // 只统计只发送过一次的请求，重发过的请求无法确定响应对应哪一次发送 (Karn 算法)
+        if (sampleRtt && query.mAttempts == 1 && !query.mHedged) {
+            mRtt.record(now - query.mSendTime);
+        }
+        return query.mWaiters;
+    }
+
+    /**
+     * 对冲请求的等待时间，取响应时间的第95百分位
+     *
+     * @return 样本不足时返回-1
+     */
+    public long getHedgeDelay() {
+        return mRtt.getP95();
+    }
+
+    /**
+     * 取出需要重发的请求：超过 timeout 毫秒没有响应且发送次数不足 maxAttempts 的请求重发，
+     * hedgeDelay 大于0时，首次发送超过该时间没有响应的请求另外通过其他隧道对冲一次
+     */
+    public List<Resend> collectResends(long timeout, int maxAttempts, long hedgeDelay) {
+        long now = System.currentTimeMillis();
+        List<Resend> resends = new ArrayList<Resend>();
+        mLock.lock();
+        try {
+            List<String> moved = null;
+            for (Map.Entry<String, PendingQuery> entry : mQueries.entrySet()) {
+                PendingQuery query = entry.getValue();
+                if (query.mRequest == null) {
+                    continue;
+                }
+                long elapsed = now - query.mSendTime;
+                if (timeout > 0 && elapsed >= timeout && query.mAttempts < maxAttempts) {
+                    query.mAttempts++;
+                    query.mSendTime = now;
+                    resends.add(new Resend(query.mRequest, query.mRequester, query.mTunnel, false));
+                    if (moved == null) {
+                        moved = new ArrayList<String>();
+                    }
+                    moved.add(entry.getKey());
+                } else if (hedgeDelay > 0 && elapsed >= hedgeDelay && query.mAttempts == 1 && !query.mHedged) {
+                    query.mHedged = true;
+                    resends.add(new Resend(query.mRequest, query.mRequester, query.mTunnel, true));
+                }
+            }
+            if (moved != null) {
+                // 保持按发送时间排序
+                for (String key : moved) {
+                    mQueries.put(key, mQueries.remove(key));
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return resends;
+    }
+
+    /**
+     * 隧道断开，取出由该隧道发出、尚未得到响应且未超过期限的请求，以便通过新的隧道重放
+     *
+     * @param deadline 第一次发送后超过该时间（毫秒）的请求不再重放，为0时不限制
+     */
+    public List<Resend> collectInFlight(RequestFlinger.Tunnel tunnel, long deadline) {
+        long now = System.currentTimeMillis();
+        List<Resend> resends = new ArrayList<Resend>();
+        mLock.lock();
+        try {
+            List<String> moved = null;
+            for (Map.Entry<String, PendingQuery> entry : mQueries.entrySet()) {
+                PendingQuery query = entry.getValue();
+                if (query.mTunnel != tunnel || query.mRequest == null) {
+                    continue;
+                }
+                query.mTunnel = null;
+                if (deadline > 0 && now - query.mFirstSendTime >= deadline) {
+                    continue;
+                }
+                query.mAttempts++;
+                query.mSendTime = now; // 避免在重放前又被重发
+                resends.add(new Resend(query.mRequest, query.mRequester, null, false));
+                if (moved == null) {
+                    moved = new ArrayList<String>();
+                }
+                moved.add(entry.getKey());
+            }
+            if (moved != null) {
+                // 与 collectResends 相同，保持按发送时间排序
+                for (String key : moved) {
+                    mQueries.put(key, mQueries.remove(key));
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return resends;
+    }
+
+    /**
+     * 取出第一次发送后超过 deadline 毫秒仍没有响应的请求，这些请求不再等待
+     */
+    public List<Expired> collectExpired(long deadline) {
+        long now = System.currentTimeMillis();
+        List<Expired> expired = new ArrayList<Expired>();
+        mLock.lock();
+        try {
+            Iterator<PendingQuery> iterator = mQueries.values().iterator();
+            while (iterator.hasNext()) {
+                PendingQuery query = iterator.next();
+                if (query.mRequest != null && now - query.mFirstSendTime >= deadline) {
+                    iterator.remove();
+                    expired.add(new Expired(query.mRequest, query.mWaiters));
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return expired;
+    }
+
+    /**
+     * 找出有请求者等待超过 timeout 毫秒的问题
+     */
+    public List<String> getOverdueKeys(long timeout) {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        mLock.lock();
+        try {
+            for (Map.Entry<String, PendingQuery> entry : mQueries.entrySet()) {
+                for (Waiter waiter : entry.getValue().mWaiters) {
+                    if (now - waiter.mJoinTime >= timeout) {
+                        keys.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * 取出该问题中等待超过 timeout 毫秒的请求者，问题本身继续等待服务器的响应
+     *
+     * @return 没有这样的请求者时返回空列表
+     */
+    public List<Waiter> takeOverdue(String key, long timeout) {
+        long now = System.currentTimeMillis();
+        List<Waiter> overdue = new ArrayList<Waiter>(2);
+        mLock.lock();
+        try {
+            PendingQuery query = mQueries.get(key);
+            if (query != null) {
+                Iterator<Waiter> iterator = query.mWaiters.iterator();
+                while (iterator.hasNext()) {
+                    Waiter waiter = iterator.next();
+                    if (now - waiter.mJoinTime >= timeout) {
+                        overdue.add(waiter);
+                        iterator.remove();
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return overdue;
+    }
+
+    /**
+     * 清理长时间没有响应的问题后检查是否还有问题在等待
+     */
+    public boolean isEmpty() {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            purgeExpired(now);
+            return mQueries.isEmpty();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 必须持有 mLock
+     * 清理长时间没有响应，也没有新请求的问题。
+     * 经隧道发出的请求留给重发和 collectExpired 处理，只在超过 MAX_TRACK_TIME 后清理
+     */
+    private void purgeExpired(long now) {
+        Iterator<PendingQuery> iterator = mQueries.values().iterator();
+        while (iterator.hasNext()) {
+            PendingQuery query = iterator.next();
+            if (query.mRequest != null) {
+                if (now - query.mFirstSendTime >= MAX_TRACK_TIME) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            if (now - query.mSendTime < PENDING_TIMEOUT * 2) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    public static class Waiter {
+        public final SocketAddress mAddress;
+        public final int mTransactionId;
+        private final long mJoinTime;
+
+        private Waiter(SocketAddress address, int transactionId, long joinTime) {
+            mAddress = address;
+            mTransactionId = transactionId;
+            mJoinTime = joinTime;
+        }
+    }
+
+    /**
+     * 需要重发的请求，mExclude 为上次发送该请求的隧道，mHedge 表示是否为对冲请求
+     */
+    public static class Resend {
+        public final byte mRequest[];
+        public final SocketAddress mRequester;
+        public final RequestFlinger.Tunnel mExclude;
+        public final boolean mHedge;
+
+        private Resend(byte request[], SocketAddress requester, RequestFlinger.Tunnel exclude, boolean hedge) {
+            mRequest = request;
+            mRequester = requester;
+            mExclude = exclude;
+            mHedge = hedge;
+        }
+    }
+
+    public static class Expired {
+        public final byte mRequest[];
+        public final List<Waiter> mWaiters;
+
+        private Expired(byte request[], List<Waiter> waiters) {
+            mRequest = request;
+            mWaiters = waiters;
+        }
+    }
+
+    private static class PendingQuery {
+        private final List<Waiter> mWaiters = new ArrayList<Waiter>(2);
+        private long mSendTime;
+        // 以下字段只有经隧道发出的请求才有
+        private byte mRequest[];
+        private SocketAddress mRequester;
+        private long mFirstSendTime;
+        private int mAttempts = 0;
+        private boolean mHedged = false;
+        private RequestFlinger.Tunnel mTunnel;
+
+        private void addWaiter(SocketAddress address, int transactionId, long joinTime) {
+            for (Waiter waiter : mWaiters) {
+                if (waiter.mTransactionId == transactionId && waiter.mAddress.equals(address)) {
+                    return; // 请求者重发的请求
+                }
+            }
+            mWaiters.add(new Waiter(address, transactionId, joinTime));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.foxteam.noisyfox.dnsproxy.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/18.
+ * 同时通过本地解析器和隧道发出的请求，只采用先到达的有效响应，后到达的响应被丢弃
+ * <p/>
+ * 同时记录每条路径的胜出次数和响应时间分布
+ */
+public class Racer {
+    public static final int PATH_TUNNEL = 0;
+    public static final int PATH_DIRECT = 1;
+    private static final String PATH_NAMES[] = {"tunnel", "direct"};
+
+    public static final int RESULT_NONE = 0; // 不是竞速中的请求
+    public static final int RESULT_WIN = 1; // 第一个到达的有效响应
+    public static final int RESULT_LOSE = 2; // 另一条路径已经胜出
+    public static final int RESULT_REJECT = 3; // 未通过有效性检查
+
+    private static final long RACE_TIMEOUT = 10000L; // 超过该时间仍未结束的竞速被清理
+    private static final int LATENCY_BUCKETS = 14; // 第i个桶记录 [2^(i-1), 2^i) 毫秒的响应
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, Race> mRaces = new LinkedHashMap<String, Race>();
+
+    private final PathStats mStats[] = {new PathStats(), new PathStats()};
+
+    /**
+     * 登记一次竞速，同一问题已在竞速时沿用原有的记录
+     */
+    public void start(String key) {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            purgeExpired(now);
+            if (!mRaces.containsKey(key)) {
+                mRaces.put(key, new Race(now));
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 某条路径的响应到达
+     *
+     * @param valid 响应是否通过有效性检查，隧道的响应总是被采用
+     * @return RESULT_*
+     */
+    public int finish(String key, int path, boolean valid) {
+        long now = System.currentTimeMillis();
+        Race race;
+        int result;
+        mLock.lock();
+        try {
+            race = mRaces.get(key);
+            if (race == null) {
+                return RESULT_NONE;
+            }
+
+            race.mFinished[path] = true;
+            if (path == PATH_DIRECT && !valid) {
+                result = RESULT_REJECT;
+            } else if (race.mWinner >= 0) {
+                result = RESULT_LOSE;
+            } else {
+                race.mWinner = path;
+                result = RESULT_WIN;
+            }
+            if (race.mFinished[PATH_TUNNEL] && race.mFinished[PATH_DIRECT]) {
+                mRaces.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        PathStats stats = mStats[path];
+        stats.record(now - race.mStartTime);
+        if (result == RESULT_WIN) {
+            stats.mWins.incrementAndGet();
+        } else if (result == RESULT_REJECT) {
+            stats.mRejects.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * 必须持有 mLock
+     */
+    private void purgeExpired(long now) {
+        Iterator<Race> iterator = mRaces.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().mStartTime < RACE_TIMEOUT) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Race");
+        for (int i = 0; i < mStats.length; i++) {
+            sb.append(' ').append(PATH_NAMES[i]).append(": ").append(mStats[i]);
+        }
+        return sb.toString();
+    }
+
+    private static class Race {
+        private final long mStartTime;
+        private final boolean mFinished[] = new boolean[2];
+        private int mWinner = -1;
+
+        private Race(long startTime) {
+            mStartTime = startTime;
+        }
+    }
+
+    private static class PathStats {
+        private final AtomicLong mWins = new AtomicLong(0L);
+        private final AtomicLong mRejects = new AtomicLong(0L);
+        private final AtomicLong mAnswers = new AtomicLong(0L);
+        private final AtomicLongArray mLatency = new AtomicLongArray(LATENCY_BUCKETS);
+
+        private void record(long latency) {
+            mAnswers.incrementAndGet();
+            int bucket = latency <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(latency);
+            mLatency.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+        }
+
+        /**
+         * 响应时间分位数的上界，单位毫秒
+         */
+        private long percentile(int percent) {
+            long total = mAnswers.get();
+            long target = (total * percent + 99) / 100;
+            long count = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                count += mLatency.get(i);
+                if (count >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << LATENCY_BUCKETS;
+        }
+
+        @Override
+        public String toString() {
+            long answers = mAnswers.get();
+            if (answers == 0) {
+                return "no answer";
+            }
+            return String.format("win %d/%d, rejected %d, p50<%dms, p95<%dms",
+                    mWins.get(), answers, mRejects.get(), percentile(50), percentile(95));
+        }
+    }
+}
@@ -1,18 +1,36 @@
 package org.foxteam.noisyfox.dnsproxy.client;
 
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+import org.foxteam.noisyfox.dnsproxy.RingBuffer;
+import org.foxteam.noisyfox.dnsproxy.TimerWheel;
+import org.foxteam.noisyfox.dnsproxy.TokenBucket;
 import org.foxteam.noisyfox.dnsproxy.Utils;
+import org.foxteam.noisyfox.dnsproxy.dns.AnswerCache;
+import org.foxteam.noisyfox.dnsproxy.dns.DNSPacket;
+import org.foxteam.noisyfox.dnsproxy.dns.PrefixSet;
+import org.foxteam.noisyfox.dnsproxy.dns.SuffixTrie;
 import org.foxteam.noisyfox.dnsproxy.dns.UDPDataFrame;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.DatagramChannel;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -21,33 +39,190 @@ import java.util.concurrent.locks.ReentrantLock;
  * 负责从本地端口获得dns请求并递交给worker线程，同时接收worker线程得到的返回值并返回给请求者
  */
 public class RequestFlinger {
-    private final static int MAX_PACKET_SIZE = 65507;
-    private final static int MAX_CACHED_PACKET = 10;
+    private static final int PREFETCH_QUEUE_SIZE = 64;
 
     private final ReentrantLock mThreadLock = new ReentrantLock();
-    private final ReentrantLock mPacketCacheLock = new ReentrantLock();
 
+    // 请求和响应队列本身是无锁的，锁只用于没有请求时挂起隧道线程
     private final ReentrantLock mRequestLock = new ReentrantLock();
     private final Condition mRequestCondition = mRequestLock.newCondition();
-    private final ReentrantLock mRespondLock = new ReentrantLock();
-    private final Condition mRespondCondition = mRespondLock.newCondition();
+    private final AtomicInteger mRequestWaiters = new AtomicInteger(0);
+    private volatile boolean mResponderParked = false;
 
-    private final Queue<DatagramPacket> mDatagramPackets = new LinkedList<DatagramPacket>();
+    private final PacketPool mPacketPool = PacketPool.getShared();
 
-    private final Queue<DatagramPacket> mRequestQueue = new LinkedList<DatagramPacket>();
-    private final Queue<DatagramPacket> mRespondQueue = new LinkedList<DatagramPacket>();
+    private final RingBuffer<DatagramPacket> mRequestQueue;
+    private final RingBuffer<DatagramPacket> mRespondQueue;
+    // 预取请求单独排队，只有在没有本机请求时才会被隧道领取
+    private final RingBuffer<DatagramPacket> mPrefetchQueue = new RingBuffer<DatagramPacket>(PREFETCH_QUEUE_SIZE);
+    private TokenBucket mPrefetchLimiter = null; // 为null时不预取
+    private final AtomicLong mPrefetchCount = new AtomicLong(0L);
+    private final OverflowPolicy mOverflowPolicy;
+    private final AtomicLong mOverflowCount = new AtomicLong(0L);
 
-    private final InetAddress mLocalHostAddress;
-    private final DatagramChannel mLocalChannel;
-    private final DatagramSocket mLocalSocket;
+    private final List<Tunnel> mTunnels = new CopyOnWriteArrayList<Tunnel>();
 
-    private LocalListener mListenerThread;
+    private final RequesterTable mRequesters = new RequesterTable();
+    private final PendingQueries mPendingQueries = new PendingQueries();
+    private final DatagramChannel mLocalChannels[];
+    private final AnswerCache mAnswerCache;
+
+    private LocalListener mListenerThreads[];
     private LocalResponder mResponderThread;
+    private PendingMonitor mMonitorThread;
+    // 等待表非空时由 TimerWheel 定时唤醒监控线程，等待表为空时监控线程一直挂起
+    private final TimerWheel mTimerWheel = TimerWheel.getShared();
+    private volatile long mMonitorInterval = 0L; // 为0时没有监控线程
+    private final AtomicBoolean mMonitorArmed = new AtomicBoolean(false);
+    private final ReentrantLock mMonitorLock = new ReentrantLock();
+    private final Condition mMonitorCondition = mMonitorLock.newCondition();
+    private boolean mMonitorKicked = false;
+    private final Runnable mMonitorKick = new Runnable() {
+        @Override
+        public void run() {
+            mMonitorLock.lock();
+            try {
+                mMonitorKicked = true;
+                mMonitorCondition.signalAll();
+            } finally {
+                mMonitorLock.unlock();
+            }
+        }
+    };
+    private DirectListener mDirectThread;
+    private long mStaleDeadline = 0L; // 为0时不使用过期应答
+
+    // 经隧道发出的请求超时未响应时自动重发，可选地通过其他隧道对冲
+    private long mRetransmitTimeout = 0L; // 为0时不重发
+    private int mMaxAttempts = 1;
+    private long mRequestDeadline = 0L; // 为0时不限制
+    private boolean mHedgeEnabled = false;
+    private long mHedgeMinDelay = 0L;
+    private final ReentrantLock mResendLock = new ReentrantLock();
+    private final ArrayDeque<PendingQueries.Resend> mResendQueue = new ArrayDeque<PendingQueries.Resend>();
+    private final AtomicInteger mResendCount = new AtomicInteger(0);
+    private final AtomicLong mRetransmitCount = new AtomicLong(0L);
+    private final AtomicLong mHedgeCount = new AtomicLong(0L);
+    private final AtomicLong mExpiredCount = new AtomicLong(0L);
+    private final AtomicLong mReplayCount = new AtomicLong(0L);
 
-    public RequestFlinger(DatagramChannel localChannel) throws UnknownHostException {
-        mLocalChannel = localChannel;
-        mLocalSocket = localChannel.socket();
-        mLocalHostAddress = InetAddress.getByName("127.0.0.1");
+    // 匹配后缀列表的请求不经过隧道，直接发给本地解析器
+    private SuffixTrie mDirectRoutes = null;
+    private DatagramChannel mDirectChannel = null;
+    private final AtomicLong mDirectCount = new AtomicLong(0L);
+
+    // 不在分流列表中的请求同时通过本地解析器和隧道发出，采用先到达的有效响应
+    private Racer mRacer = null;
+    private PrefixSet mRaceFilter = null;
+
+    /**
+     * 请求队列已满时的处理方式
+     */
+    public enum OverflowPolicy {
+        DROP_NEWEST, // 丢弃新的请求
+        DROP_OLDEST, // 丢弃队列中最早的请求
+        SERVFAIL // 对新的请求直接返回 SERVFAIL
+    }
+
+    /**
+     * @param localChannels 监听本地端口的通道，每个通道由一个监听线程负责接收，响应统一从第一个通道发出
+     * @param answerCache   应答缓存，为null时不缓存
+     * @param queueSize     请求队列和响应队列的容量
+     */
+    public RequestFlinger(DatagramChannel localChannels[], AnswerCache answerCache,
+                          int queueSize, OverflowPolicy overflowPolicy) {
+        mLocalChannels = localChannels;
+        mAnswerCache = answerCache;
+        mRequestQueue = new RingBuffer<DatagramPacket>(queueSize);
+        mRespondQueue = new RingBuffer<DatagramPacket>(queueSize);
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 开启预取，必须在 start 之前调用，缓存本身的预取条件由 AnswerCache.enablePrefetch 设置
+     *
+     * @param ratePerSecond 每秒最多发出的预取请求数
+     */
+    public void enablePrefetch(int ratePerSecond) {
+        if (mAnswerCache != null && ratePerSecond > 0) {
+            mPrefetchLimiter = new TokenBucket(ratePerSecond, ratePerSecond);
+        }
+    }
+
+    /**
+     * 开启 serve-stale，必须在 start 之前调用，过期应答的保留时间由 AnswerCache.enableServeStale 设置
+     *
+     * @param deadline 请求等待服务器响应超过该时间（毫秒）后，使用缓存中过期的应答响应
+     */
+    public void enableServeStale(long deadline) {
+        if (mAnswerCache != null && deadline > 0) {
+            mStaleDeadline = deadline;
+        }
+    }
+
+    /**
+     * 开启自动重发，必须在 start 之前调用
+     *
+     * @param timeout       请求超过该时间（毫秒）没有响应时重发
+     * @param retries       最多重发的次数
+     * @param deadline      第一次发送后超过该时间（毫秒）仍没有响应时向请求者返回 SERVFAIL，为0时不限制
+     * @param hedge         是否在响应时间的第95百分位之后通过另一条隧道对冲一次
+     * @param hedgeMinDelay 对冲的最短等待时间（毫秒）
+     */
+    public void enableRetransmit(long timeout, int retries, long deadline, boolean hedge, long hedgeMinDelay) {
+        mRetransmitTimeout = timeout;
+        mMaxAttempts = 1 + retries;
+        mPendingQueries.setMaxAttempts(timeout > 0 ? mMaxAttempts : 1);
+        mRequestDeadline = deadline;
+        mHedgeEnabled = hedge;
+        mHedgeMinDelay = hedgeMinDelay;
+    }
+
+    public long getRetransmitCount() {
+        return mRetransmitCount.get();
+    }
+
+    public long getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    public long getReplayCount() {
+        return mReplayCount.get();
+    }
+
+    private boolean isTrackingRequests() {
+        return mRetransmitTimeout > 0 || mRequestDeadline > 0 || mHedgeEnabled;
+    }
+
+    /**
+     * 开启分流，必须在 start 之前调用
+     *
+     * @param routes          需要直接解析的域名后缀
+     * @param resolverChannel 已连接到本地解析器的通道
+     */
+    public void enableDirectRoute(SuffixTrie routes, DatagramChannel resolverChannel) {
+        mDirectRoutes = routes;
+        mDirectChannel = resolverChannel;
+    }
+
+    /**
+     * 开启竞速，必须在 enableDirectRoute 之后、start 之前调用
+     *
+     * @param filter 本地解析器的应答中出现这些地址时视为被污染，为null时只检查响应码
+     */
+    public void enableRace(PrefixSet filter) {
+        if (mDirectChannel != null) {
+            mRacer = new Racer();
+            mRaceFilter = filter;
+        }
+    }
+
+    public Racer getRacer() {
+        return mRacer;
     }
 
     public void start() {
@@ -57,200 +232,888 @@ public class RequestFlinger {
     public void stop() {
         mThreadLock.lock();
         try {
-            if (mListenerThread != null) {
-                mListenerThread.interrupt();
+            if (mListenerThreads != null) {
+                for (LocalListener listener : mListenerThreads) {
+                    listener.interrupt();
+                }
             }
             if (mResponderThread != null) {
                 mResponderThread.interrupt();
             }
-            if (mListenerThread != null) {
+            if (mMonitorThread != null) {
+                mMonitorThread.interrupt();
+            }
+            if (mDirectThread != null) {
+                mDirectThread.interrupt();
+            }
+            if (mListenerThreads != null) {
+                for (LocalListener listener : mListenerThreads) {
+                    try {
+                        listener.join();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (mResponderThread != null) {
                 try {
-                    mListenerThread.join();
+                    mResponderThread.join();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
-            if (mResponderThread != null) {
+            if (mMonitorThread != null) {
                 try {
-                    mResponderThread.join();
+                    mMonitorThread.join();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
-            mListenerThread = null;
+            if (mDirectThread != null) {
+                try {
+                    mDirectThread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            mListenerThreads = null;
             mResponderThread = null;
+            mMonitorThread = null;
+            mMonitorInterval = 0L;
+            mDirectThread = null;
         } finally {
-            mThreadLock.lock();
+            mThreadLock.unlock();
+        }
+    }
+
+    /**
+     * 注册一条已完成握手的隧道，之后该隧道可通过 pollRequestOrWait 领取请求
+     */
+    public Tunnel registerTunnel() {
+        Tunnel tunnel = new Tunnel();
+        mTunnels.add(tunnel);
+        return tunnel;
+    }
+
+    /**
+     * 注销已断开的隧道，该隧道上尚未得到响应的请求交给其他隧道或重建后的隧道重放
+     */
+    public void unregisterTunnel(Tunnel tunnel) {
+        mTunnels.remove(tunnel);
+        if (isTrackingRequests()) {
+            List<PendingQueries.Resend> replays = mPendingQueries.collectInFlight(tunnel, mRequestDeadline);
+            for (PendingQueries.Resend replay : replays) {
+                queueResend(replay);
+            }
+            if (!replays.isEmpty()) {
+                mReplayCount.addAndGet(replays.size());
+                Utils.showVerbose("Replay " + replays.size() + " request(s)");
+            }
         }
+        notifyRequestWaiters(); // 让其他隧道重新竞争
+    }
+
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    public long getPrefetchCount() {
+        return mPrefetchCount.get();
     }
 
-    public void queueRespondAndNotify(UDPDataFrame respond) {
-        DatagramPacket packet = obtainDatagramPacket();
+    public long getDirectCount() {
+        return mDirectCount.get();
+    }
+
+    public void queueRespondAndNotify(UDPDataFrame respond, Tunnel tunnel) {
+        tunnel.onRespond();
+
+        int length = respond.getDataLength();
+        DatagramPacket packet = mPacketPool.obtain(length);
+        respond.readData(packet.getData());
+
+        handleRespond(packet, respond.getPort(), Racer.PATH_TUNNEL);
+    }
+
+    /**
+     * 处理服务器或本地解析器的响应：写入缓存并分发给等待该问题的请求者
+     *
+     * @param requesterId 没有等待者时按该编号找回请求者，为-1时直接丢弃
+     * @param path        响应来自哪条路径，Racer.PATH_*
+     */
+    private void handleRespond(DatagramPacket packet, int requesterId, int path) {
         byte data[] = packet.getData();
-        respond.readData(data);
+        int length = packet.getLength();
 
-        packet.setData(data, 0, respond.getDataLength());
-        packet.setPort(respond.getPort());
-        packet.setAddress(mLocalHostAddress);
+        String respondKey = DNSPacket.getQuestionKey(data, 0, length);
+        if (respondKey != null) {
+            String key = matchPendingKey(respondKey);
+            if (mRacer != null) {
+                boolean valid = path != Racer.PATH_DIRECT || isValidDirectRespond(data, length);
+                int result = mRacer.finish(key, path, valid);
+                if (result == Racer.RESULT_LOSE || result == Racer.RESULT_REJECT) {
+                    Utils.showVerbose("Race " + (result == Racer.RESULT_LOSE ? "lost! " : "rejected! ") + key);
+                    releaseDatagramPacket(packet); // 等待者由另一条路径的响应处理
+                    return;
+                }
+            }
 
-        mRespondLock.lock();
-        try {
-            mRespondQueue.offer(packet);
-            mRespondCondition.signalAll();
-        } finally {
-            mRespondLock.unlock();
+            // 标志与请求不同的应答只交给等待者，不能按应答中的标志缓存，例如CD请求得到的未验证应答
+            if (mAnswerCache != null && key.equals(respondKey)) {
+                mAnswerCache.put(data, 0, length);
+            }
+
+            List<PendingQueries.Waiter> waiters = mPendingQueries.complete(key, path == Racer.PATH_TUNNEL);
+            if (waiters == null) {
+                // 所有的请求都登记在等待表中，不在表中说明是重发或对冲请求的重复响应，或者已经超过期限
+                Utils.showVerbose("Duplicate respond dropped! " + key);
+                releaseDatagramPacket(packet);
+                return;
+            }
+            dispatchRespond(packet, waiters);
+            return;
+        }
+
+        SocketAddress requester = requesterId < 0 ? null : mRequesters.getAddress(requesterId);
+        if (requester == null) {
+            Utils.showVerbose("Unknown requester id:" + requesterId);
+            releaseDatagramPacket(packet);
+            return;
         }
+        packet.setSocketAddress(requester);
+
+        queueRespond(packet);
     }
 
-    public void pollRequestOrWait(UDPDataFrame request) throws InterruptedException {
-        mRequestLock.lock();
-        try {
-            while (mRequestQueue.isEmpty()) {
-                mRequestCondition.await();
+    /**
+     * 应答中的标志与请求不同时（上游不支持 EDNS 或者不复制CD位），按请求的问题找回等待表中的条目
+     */
+    private String matchPendingKey(String key) {
+        if (mPendingQueries.contains(key)) {
+            return key;
+        }
+        for (String requestKey : DNSPacket.getRequestQuestionKeys(key)) {
+            if (mPendingQueries.contains(requestKey)) {
+                return requestKey;
             }
-            DatagramPacket packet = mRequestQueue.poll();
-            request.fillData(packet.getData(), packet.getOffset(), packet.getLength());
-            request.setPort(packet.getPort());
+        }
+        return key;
+    }
 
+    /**
+     * 本地解析器的响应可能被污染，服务器失败、拒绝服务或者应答中出现过滤列表中的地址时不采用
+     */
+    private boolean isValidDirectRespond(byte data[], int length) {
+        int rcode = DNSPacket.getRcode(data, 0);
+        if (rcode != DNSPacket.RCODE_NOERROR && rcode != DNSPacket.RCODE_NXDOMAIN) {
+            return false;
+        }
+        return mRaceFilter == null || !mRaceFilter.containsAnswerAddress(data, 0, length);
+    }
+
+    /**
+     * 将响应分发给所有等待该问题的请求者，每份响应使用请求者自己的事务ID
+     */
+    private void dispatchRespond(DatagramPacket respond, List<PendingQueries.Waiter> waiters) {
+        if (waiters.isEmpty()) {
+            releaseDatagramPacket(respond); // 预取的响应，已经写入缓存
+            return;
+        }
+
+        byte respondData[] = respond.getData();
+        int length = respond.getLength();
+        for (int i = 1; i < waiters.size(); i++) {
+            PendingQueries.Waiter waiter = waiters.get(i);
+            DatagramPacket packet = mPacketPool.obtain(respondData, 0, length);
+            DNSPacket.setTransactionId(packet.getData(), 0, waiter.mTransactionId);
+            packet.setSocketAddress(waiter.mAddress);
+            queueRespond(packet);
+        }
+
+        PendingQueries.Waiter first = waiters.get(0);
+        DNSPacket.setTransactionId(respondData, 0, first.mTransactionId);
+        respond.setSocketAddress(first.mAddress);
+        queueRespond(respond);
+    }
+
+    private void queueRespond(DatagramPacket packet) {
+        if (!mRespondQueue.offer(packet)) {
+            Utils.showVerbose("Respond queue full, respond dropped!");
             releaseDatagramPacket(packet);
+            return;
+        }
+        if (mResponderParked) {
+            LockSupport.unpark(mResponderThread);
+        }
+    }
+
+    /**
+     * 为指定隧道领取一个请求，多条隧道同时等待时，由未完成请求最少的隧道领取
+     */
+    public void pollRequestOrWait(UDPDataFrame request, Tunnel tunnel) throws InterruptedException {
+        DatagramPacket packet = tryPollRequest(tunnel);
+        if (packet == null) {
+            mRequestLock.lock();
+            mRequestWaiters.incrementAndGet();
+            tunnel.mWaiting = true;
+            try {
+                while ((packet = tryPollRequest(tunnel)) == null) {
+                    mRequestCondition.await();
+                }
+            } finally {
+                tunnel.mWaiting = false;
+                mRequestWaiters.decrementAndGet();
+                if (hasRequest()) {
+                    mRequestCondition.signalAll(); // 剩余请求交给其他等待中的隧道
+                }
+                mRequestLock.unlock();
+            }
+        }
+
+        request.fillData(packet.getData(), packet.getOffset(), packet.getLength());
+        request.setPort(mRequesters.getId(packet.getSocketAddress())); // 隧道中以编号代替请求者地址
+        tunnel.onRequest();
+        if (isTrackingRequests()) {
+            String key = DNSPacket.getQuestionKey(packet.getData(), packet.getOffset(), packet.getLength());
+            if (key != null) {
+                mPendingQueries.setTunnel(key, tunnel);
+            }
+        }
+
+        releaseDatagramPacket(packet);
+    }
+
+    /**
+     * 领取顺序：本机请求、重发请求、预取请求。重发请求不要求隧道负载最低，
+     * 但尽量不交给上次发送它的隧道
+     */
+    private DatagramPacket tryPollRequest(Tunnel tunnel) {
+        if (!hasRequest()) {
+            return null;
+        }
+        boolean leastLoaded = isLeastLoaded(tunnel);
+        DatagramPacket packet = leastLoaded ? mRequestQueue.poll() : null;
+        if (packet == null) {
+            packet = pollResend(tunnel);
+        }
+        if (packet == null && leastLoaded) {
+            packet = mPrefetchQueue.poll();
+        }
+        return packet;
+    }
+
+    private boolean hasRequest() {
+        return !mRequestQueue.isEmpty() || mResendCount.get() > 0 || !mPrefetchQueue.isEmpty();
+    }
+
+    private DatagramPacket pollResend(Tunnel tunnel) {
+        if (mResendCount.get() == 0) {
+            return null;
+        }
+        mResendLock.lock();
+        try {
+            Iterator<PendingQueries.Resend> iterator = mResendQueue.iterator();
+            while (iterator.hasNext()) {
+                PendingQueries.Resend resend = iterator.next();
+                if (resend.mExclude == tunnel && mTunnels.size() > 1 && mTunnels.contains(resend.mExclude)) {
+                    continue; // 留给其他隧道
+                }
+                iterator.remove();
+                mResendCount.decrementAndGet();
+                DatagramPacket packet = mPacketPool.obtain(resend.mRequest, 0, resend.mRequest.length);
+                packet.setSocketAddress(resend.mRequester);
+                return packet;
+            }
+            return null;
         } finally {
-            mRequestLock.unlock();
+            mResendLock.unlock();
+        }
+    }
+
+    private void queueResend(PendingQueries.Resend resend) {
+        mResendLock.lock();
+        try {
+            mResendQueue.add(resend);
+            mResendCount.incrementAndGet();
+        } finally {
+            mResendLock.unlock();
+        }
+    }
+
+    private boolean isLeastLoaded(Tunnel tunnel) {
+        int outstanding = tunnel.getOutstanding();
+        for (Tunnel t : mTunnels) {
+            if (t != tunnel && t.mWaiting && t.getOutstanding() < outstanding) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
      * 当本机没有请求的时候挂起
      */
     public void waitWhileRequestEmpty() throws InterruptedException {
+        if (hasRequest()) {
+            return;
+        }
         mRequestLock.lock();
+        mRequestWaiters.incrementAndGet();
         try {
-            if (mRequestQueue.isEmpty()) {
+            if (!hasRequest()) {
                 mRequestCondition.await();
             }
         } finally {
+            mRequestWaiters.decrementAndGet();
             mRequestLock.unlock();
         }
     }
 
+    /**
+     * 只有在有线程等待时才需要加锁唤醒
+     */
+    private void notifyRequestWaiters() {
+        if (mRequestWaiters.get() > 0) {
+            mRequestLock.lock();
+            try {
+                mRequestCondition.signalAll();
+            } finally {
+                mRequestLock.unlock();
+            }
+        }
+    }
+
     private void checkThread() {
         mThreadLock.lock();
         try {
-            if (mListenerThread == null || !mListenerThread.isAlive()) {
-                mListenerThread = new LocalListener();
-                mListenerThread.start();
+            if (mListenerThreads == null) {
+                mListenerThreads = new LocalListener[mLocalChannels.length];
+            }
+            for (int i = 0; i < mListenerThreads.length; i++) {
+                if (mListenerThreads[i] == null || !mListenerThreads[i].isAlive()) {
+                    mListenerThreads[i] = new LocalListener(mLocalChannels[i]);
+                    mListenerThreads[i].start();
+                }
             }
             if (mResponderThread == null || !mResponderThread.isAlive()) {
                 mResponderThread = new LocalResponder();
                 mResponderThread.start();
             }
+            if ((mStaleDeadline > 0 || isTrackingRequests())
+                    && (mMonitorThread == null || !mMonitorThread.isAlive())) {
+                mMonitorInterval = getMonitorInterval();
+                mMonitorThread = new PendingMonitor();
+                mMonitorThread.start();
+            }
+            if (mDirectChannel != null && (mDirectThread == null || !mDirectThread.isAlive())) {
+                mDirectThread = new DirectListener();
+                mDirectThread.start();
+            }
         } finally {
-            mThreadLock.lock();
+            mThreadLock.unlock();
         }
     }
 
-    private void queueRequestAndNotify(DatagramPacket packet) {
-        mRequestLock.lock();
+    /**
+     * 监控线程的检查间隔，取各项时限的四分之一
+     */
+    private long getMonitorInterval() {
+        long interval = Long.MAX_VALUE;
+        if (mStaleDeadline > 0) {
+            interval = Math.min(interval, mStaleDeadline / 4);
+        }
+        if (mRetransmitTimeout > 0) {
+            interval = Math.min(interval, mRetransmitTimeout / 4);
+        }
+        if (mRequestDeadline > 0) {
+            interval = Math.min(interval, mRequestDeadline / 4);
+        }
+        if (mHedgeEnabled) {
+            interval = Math.min(interval, Math.max(mHedgeMinDelay, 40L) / 4);
+        }
+        return Math.max(interval, 10L);
+    }
+
+    /**
+     * 安排一次监控线程的检查，已经安排过时不重复安排
+     */
+    private void armMonitor() {
+        long interval = mMonitorInterval;
+        if (interval > 0 && mMonitorArmed.compareAndSet(false, true)) {
+            mTimerWheel.schedule(mMonitorKick, interval);
+        }
+    }
+
+    /**
+     * 请求入队，由调用者在一批请求入队后调用 notifyRequestWaiters
+     */
+    private void queueRequest(DatagramPacket packet) {
+        if (!mRequestQueue.offer(packet)) {
+            handleOverflow(packet);
+        }
+    }
+
+    /**
+     * 请求队列已满，按照配置的策略处理新的请求
+     */
+    private void handleOverflow(DatagramPacket packet) {
+        mOverflowCount.incrementAndGet();
+        Utils.showVerbose("Request queue full! policy:" + mOverflowPolicy);
+
+        switch (mOverflowPolicy) {
+            case DROP_OLDEST:
+                DatagramPacket oldest = mRequestQueue.poll();
+                if (oldest != null) {
+                    dropRequest(oldest);
+                }
+                if (!mRequestQueue.offer(packet)) {
+                    dropRequest(packet);
+                }
+                break;
+            case SERVFAIL:
+                // 改写后的响应不再带OPT记录，先按原请求取出问题
+                String key = DNSPacket.getQuestionKey(packet.getData(), packet.getOffset(), packet.getLength());
+                int length = DNSPacket.toServerFailure(packet.getData(), packet.getOffset(), packet.getLength());
+                if (length < 0) {
+                    releaseDatagramPacket(packet);
+                } else {
+                    packet.setLength(length);
+                    // 合并到该请求上的其他请求者同样返回失败，也不再重发
+                    List<PendingQueries.Waiter> waiters = key == null ? null : mPendingQueries.complete(key, false);
+                    if (waiters != null && !waiters.isEmpty()) {
+                        dispatchRespond(packet, waiters);
+                    } else {
+                        queueRespond(packet);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+            default:
+                dropRequest(packet);
+                break;
+        }
+    }
+
+    /**
+     * 丢弃一个请求。该请求不会再得到响应，把它从等待表中移除，
+     * 否则合并到该问题上的请求者要一直等到期限，请求者重试时会重新发送
+     */
+    private void dropRequest(DatagramPacket packet) {
+        String key = DNSPacket.getQuestionKey(packet.getData(), packet.getOffset(), packet.getLength());
+        if (key != null) {
+            mPendingQueries.complete(key, false);
+        }
+        releaseDatagramPacket(packet);
+    }
+
+    /**
+     * 处理本机发出的请求：能用缓存的应答响应则直接响应，相同的问题正在等待响应则合并，
+     * 否则交给隧道发送
+     */
+    private void handleRequest(DatagramPacket packet) {
+        byte requestData[] = packet.getData();
+        int offset = packet.getOffset();
+        String key = DNSPacket.getQuestionKey(requestData, offset, packet.getLength());
+        if (key == null) {
+            queueRequest(packet);
+            return;
+        }
+        int transactionId = DNSPacket.getTransactionId(requestData, offset);
+
+        int payloadSize = DNSPacket.getUdpPayloadSize(requestData, offset, packet.getLength());
+        if (answerFromCache(key, transactionId, payloadSize, packet.getSocketAddress())) {
+            if (mPrefetchLimiter != null && mAnswerCache.claimRefresh(key)) {
+                queuePrefetch(key, packet);
+            } else {
+                releaseDatagramPacket(packet);
+            }
+            return;
+        }
+
+        boolean coalesced = mPendingQueries.join(key, packet.getSocketAddress(), transactionId);
+        armMonitor();
+        if (coalesced) {
+            Utils.showVerbose("Request coalesced! " + key);
+            releaseDatagramPacket(packet);
+            return;
+        }
+
+        if (sendDirect(packet)) {
+            return;
+        }
+        if (mRacer != null) {
+            mRacer.start(key);
+            writeDirect(packet);
+        }
+        if (isTrackingRequests()) {
+            mPendingQueries.setRequest(key, requestData, offset, packet.getLength(), packet.getSocketAddress());
+        }
+        queueRequest(packet);
+    }
+
+    /**
+     * 请求的域名匹配分流列表时直接发给本地解析器，响应同样经过缓存和等待表分发
+     *
+     * @return 请求是否已经发出，返回true时数据包已被回收
+     */
+    private boolean sendDirect(DatagramPacket packet) {
+        if (mDirectRoutes == null
+                || !mDirectRoutes.matches(packet.getData(), packet.getOffset(), packet.getLength())) {
+            return false;
+        }
+
+        if (!writeDirect(packet)) {
+            return false; // 本地解析器不可用时改走隧道
+        }
+        releaseDatagramPacket(packet);
+        return true;
+    }
+
+    private boolean writeDirect(DatagramPacket packet) {
         try {
-            mRequestQueue.offer(packet);
-            mRequestCondition.signalAll();
-        } finally {
-            mRequestLock.unlock();
+            mDirectChannel.write(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        mDirectCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 用刚刚命中缓存的请求在后台刷新缓存，预取请求受速率限制，队列满时直接放弃
+     */
+    private void queuePrefetch(String key, DatagramPacket packet) {
+        if (!mPrefetchLimiter.tryAcquire() || !mPendingQueries.prefetch(key)) {
+            mAnswerCache.cancelRefresh(key);
+            releaseDatagramPacket(packet);
+            return;
+        }
+        if (sendDirect(packet)) {
+            mPrefetchCount.incrementAndGet();
+            return;
+        }
+        if (!mPrefetchQueue.offer(packet)) {
+            mPendingQueries.complete(key, false);
+            mAnswerCache.cancelRefresh(key);
+            releaseDatagramPacket(packet);
+            return;
+        }
+        mPrefetchCount.incrementAndGet();
+        Utils.showVerbose("Prefetch " + key);
+    }
+
+    /**
+     * 尝试直接用缓存的应答响应请求
+     *
+     * @return 是否命中缓存
+     */
+    private boolean answerFromCache(String key, int transactionId, int payloadSize, SocketAddress requester) {
+        if (mAnswerCache == null) {
+            return false;
+        }
+
+        DatagramPacket respond = mAnswerCache.get(key, transactionId, mPacketPool);
+        if (respond == null) {
+            return false;
+        }
+        if (respond.getLength() > payloadSize) {
+            releaseDatagramPacket(respond); // 其他请求者声明了更大的长度，这个请求者需要截断的应答
+            return false;
         }
+        Utils.showVerbose("Cache hit! " + key);
+
+        respond.setSocketAddress(requester);
+
+        queueRespond(respond);
+        return true;
     }
 
     /**
      * 监听线程，负责监听本机发出的dns请求
+     * 通道为非阻塞模式，每次唤醒后尽量读空接收队列，整批交给隧道后再唤醒隧道线程
      */
     private class LocalListener extends Thread {
+        private static final int MAX_BATCH_SIZE = 64;
+
+        private final DatagramChannel mChannel;
+        // 接收用的缓冲区只有一个，收到请求后按实际大小复制到池中的数据包
+        private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(PacketPool.MAX_PACKET_SIZE);
+        private final List<DatagramPacket> mBatch = new ArrayList<DatagramPacket>(MAX_BATCH_SIZE);
+
+        public LocalListener(DatagramChannel channel) {
+            mChannel = channel;
+        }
+
         @Override
         public void run() {
-            while (true) {
-                try {
-                    // 接收一个请求
-                    DatagramPacket packet = obtainDatagramPacket();
-                    packet.setData(packet.getData());
-                    mLocalSocket.receive(packet);
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                mChannel.configureBlocking(false);
+                mChannel.register(selector, SelectionKey.OP_READ);
 
-                    queueRequestAndNotify(packet);
-                } catch (ClosedByInterruptException e) {
-                    return;
-                } catch (IOException e) {
-                    e.printStackTrace();
+                while (!interrupted()) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+
+                    receiveBatch();
+                    for (DatagramPacket packet : mBatch) {
+                        handleRequest(packet);
+                    }
+                    mBatch.clear();
+                    notifyRequestWaiters();
+                }
+            } catch (ClosedByInterruptException ignored) {
+            } catch (ClosedSelectorException ignored) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (selector != null) {
+                    try {
+                        selector.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
+            }
+        }
 
-                if (interrupted()) {
-                    return;
+        private void receiveBatch() throws IOException {
+            while (mBatch.size() < MAX_BATCH_SIZE) {
+                mReceiveBuffer.clear();
+                SocketAddress requester = mChannel.receive(mReceiveBuffer);
+                if (requester == null) {
+                    return; // 已读空
                 }
+
+                DatagramPacket packet = mPacketPool.obtain(mReceiveBuffer.array(), 0, mReceiveBuffer.position());
+                packet.setSocketAddress(requester);
+                mBatch.add(packet);
             }
         }
     }
 
     /**
      * 响应线程，负责根据服务器响应本机请求
+     * <p/>
+     * 监听线程把通道切换为非阻塞模式，发送缓冲区已满时 send 不发送任何数据，
+     * 此时通过单独的 Selector 等待通道可写后重试，不丢弃响应
      */
     private class LocalResponder extends Thread {
+        private Selector mWriteSelector = null;
+
         @Override
         public void run() {
-            while (true) {
-                DatagramPacket packet = null;
-                mRespondLock.lock();
-                try {
-                    if (mRespondQueue.isEmpty()) {
-                        try {
-                            mRespondCondition.await();
-                        } catch (InterruptedException e) {
-                            return;
+            try {
+                while (!interrupted()) {
+                    DatagramPacket packet = mRespondQueue.poll();
+                    if (packet == null) {
+                        // 先声明将要挂起再检查队列，避免错过唤醒
+                        mResponderParked = true;
+                        if (mRespondQueue.isEmpty()) {
+                            LockSupport.park(this);
                         }
-                    } else {
-                        packet = mRespondQueue.poll();
+                        mResponderParked = false;
+                        continue;
                     }
-                } finally {
-                    mRespondLock.unlock();
-                }
-                if (packet != null) {
+
                     try {
-                        mLocalSocket.send(packet);
+                        sendRespond(packet);
                         Utils.showVerbose("client respond!");
+                    } catch (ClosedByInterruptException e) {
+                        return;
+                    } catch (ClosedSelectorException e) {
+                        return;
                     } catch (IOException e) {
                         e.printStackTrace();
+                    } finally {
+                        releaseDatagramPacket(packet);
                     }
-                    releaseDatagramPacket(packet);
                 }
+            } finally {
+                if (mWriteSelector != null) {
+                    try {
+                        mWriteSelector.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
 
+        private void sendRespond(DatagramPacket packet) throws IOException {
+            DatagramChannel channel = mLocalChannels[0];
+            ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+            while (channel.send(buffer, packet.getSocketAddress()) == 0) {
+                // 只有非阻塞模式下才会返回0，此时可以注册到 Selector
+                if (mWriteSelector == null) {
+                    mWriteSelector = Selector.open();
+                    channel.register(mWriteSelector, SelectionKey.OP_WRITE);
+                }
+                mWriteSelector.select();
+                mWriteSelector.selectedKeys().clear();
                 if (interrupted()) {
+                    throw new ClosedByInterruptException();
+                }
+            }
+        }
+    }
+
+    /**
+     * 本地解析器响应线程，接收分流请求的响应
+     */
+    private class DirectListener extends Thread {
+        private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(PacketPool.MAX_PACKET_SIZE);
+
+        @Override
+        public void run() {
+            while (!interrupted()) {
+                mReceiveBuffer.clear();
+                try {
+                    mDirectChannel.receive(mReceiveBuffer);
+                } catch (ClosedByInterruptException e) {
+                    return;
+                } catch (PortUnreachableException e) {
+                    Utils.showVerbose("Local resolver unreachable!");
+                    continue;
+                } catch (IOException e) {
+                    e.printStackTrace();
                     return;
                 }
+
+                DatagramPacket packet = mPacketPool.obtain(mReceiveBuffer.array(), 0, mReceiveBuffer.position());
+                handleRespond(packet, -1, Racer.PATH_DIRECT);
             }
         }
     }
 
-    private DatagramPacket obtainDatagramPacket() {
-        if (mDatagramPackets.isEmpty()) {
-            byte[] buffer = new byte[MAX_PACKET_SIZE];
-            return new DatagramPacket(buffer, buffer.length);
+    /**
+     * 等待表监控线程，在 TimerWheel 的唤醒下检查等待服务器响应的请求：
+     * 超过 serve-stale 时限的请求用缓存中保留的过期应答先行响应 (RFC 8767)，服务器的响应到达后仍会写入缓存；
+     * 超时的请求重发或对冲；超过期限的请求向请求者返回 SERVFAIL。
+     * 每次检查后只在等待表非空时安排下一次检查，没有请求时不会醒来
+     */
+    private class PendingMonitor extends Thread {
+        @Override
+        public void run() {
+            while (!interrupted()) {
+                mMonitorLock.lock();
+                try {
+                    while (!mMonitorKicked) {
+                        mMonitorCondition.await();
+                    }
+                    mMonitorKicked = false;
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    mMonitorLock.unlock();
+                }
+
+                if (mStaleDeadline > 0) {
+                    serveStale();
+                }
+                if (mRetransmitTimeout > 0 || mHedgeEnabled) {
+                    resend();
+                }
+                if (mRequestDeadline > 0) {
+                    expire();
+                }
+
+                mMonitorArmed.set(false);
+                if (!mPendingQueries.isEmpty()) {
+                    armMonitor();
+                }
+            }
         }
 
-        mPacketCacheLock.lock();
-        try {
-            if (mDatagramPackets.isEmpty()) {
-                byte[] buffer = new byte[MAX_PACKET_SIZE];
-                return new DatagramPacket(buffer, buffer.length);
-            } else {
-                return mDatagramPackets.poll();
+        private void serveStale() {
+            for (String key : mPendingQueries.getOverdueKeys(mStaleDeadline)) {
+                if (!mAnswerCache.containsStale(key)) {
+                    continue; // 没有可用的应答，继续等待服务器
+                }
+                for (PendingQueries.Waiter waiter : mPendingQueries.takeOverdue(key, mStaleDeadline)) {
+                    DatagramPacket respond = mAnswerCache.getStale(key, waiter.mTransactionId, mPacketPool);
+                    if (respond == null) {
+                        break;
+                    }
+                    Utils.showVerbose("Serve stale! " + key);
+                    respond.setSocketAddress(waiter.mAddress);
+                    queueRespond(respond);
+                }
+            }
+        }
+
+        private void resend() {
+            long hedgeDelay = -1L;
+            if (mHedgeEnabled && mTunnels.size() > 1) {
+                hedgeDelay = mPendingQueries.getHedgeDelay();
+                if (hedgeDelay >= 0) {
+                    hedgeDelay = Math.max(hedgeDelay, mHedgeMinDelay);
+                }
+            }
+
+            List<PendingQueries.Resend> resends =
+                    mPendingQueries.collectResends(mRetransmitTimeout, mMaxAttempts, hedgeDelay);
+            if (resends.isEmpty()) {
+                return;
+            }
+            for (PendingQueries.Resend resend : resends) {
+                if (resend.mHedge) {
+                    mHedgeCount.incrementAndGet();
+                } else {
+                    mRetransmitCount.incrementAndGet();
+                }
+                queueResend(resend);
+            }
+            notifyRequestWaiters();
+        }
+
+        private void expire() {
+            for (PendingQueries.Expired expired : mPendingQueries.collectExpired(mRequestDeadline)) {
+                mExpiredCount.incrementAndGet();
+                for (PendingQueries.Waiter waiter : expired.mWaiters) {
+                    DatagramPacket respond = mPacketPool.obtain(expired.mRequest, 0, expired.mRequest.length);
+                    int length = DNSPacket.toServerFailure(respond.getData(), 0, respond.getLength());
+                    if (length < 0) {
+                        releaseDatagramPacket(respond);
+                        break;
+                    }
+                    respond.setLength(length);
+                    DNSPacket.setTransactionId(respond.getData(), 0, waiter.mTransactionId);
+                    respond.setSocketAddress(waiter.mAddress);
+                    queueRespond(respond);
+                }
             }
-        } finally {
-            mPacketCacheLock.unlock();
         }
     }
 
     private void releaseDatagramPacket(DatagramPacket packet) {
-        mPacketCacheLock.lock();
-        try {
-            if (mDatagramPackets.size() < MAX_CACHED_PACKET) {
-                mDatagramPackets.offer(packet);
+        mPacketPool.release(packet);
+    }
+
+    /**
+     * 一条已建立的隧道，记录已发出但尚未收到响应的请求数，用于请求分派
+     */
+    public static class Tunnel {
+        private final AtomicInteger mOutstanding = new AtomicInteger(0);
+        private volatile boolean mWaiting = false;
+
+        public int getOutstanding() {
+            return mOutstanding.get();
+        }
+
+        private void onRequest() {
+            mOutstanding.incrementAndGet();
+        }
+
+        private void onRespond() {
+            while (true) {
+                int current = mOutstanding.get();
+                if (current <= 0 || mOutstanding.compareAndSet(current, current - 1)) {
+                    return;
+                }
             }
-        } finally {
-            mPacketCacheLock.unlock();
         }
     }
 }
@@ -0,0 +1,99 @@
+package org.foxteam.noisyfox.dnsproxy.client;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/9.
+ * 请求者编号表，为每个发出请求的地址（IPv4或IPv6地址+端口）分配一个16位编号
+ * 隧道中只传输这个编号，服务器返回响应时再根据编号找回请求者的地址
+ * <p/>
+ * 编号按顺序循环分配，以尽量推迟编号被其他请求者复用的时间
+ */
+public class RequesterTable {
+    private static final int MAX_ID = 0x10000;
+    private static final long IDLE_TIMEOUT = 60 * 1000L; // 超过该时间未使用的编号可以被回收
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final HashMap<SocketAddress, Integer> mIds = new HashMap<SocketAddress, Integer>();
+    private final SocketAddress mAddresses[] = new SocketAddress[MAX_ID];
+    private final long mLastActiveTime[] = new long[MAX_ID];
+    private int mNextId = 0;
+
+    /**
+     * 获得请求者的编号，没有时分配一个新的编号
+     */
+    public int getId(SocketAddress address) {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            Integer id = mIds.get(address);
+            if (id != null) {
+                mLastActiveTime[id] = now;
+                return id;
+            }
+
+            int newId = findFreeId(now);
+            mIds.put(address, newId);
+            mAddresses[newId] = address;
+            mLastActiveTime[newId] = now;
+            return newId;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 编号对应的请求者地址，编号未分配时返回null
+     */
+    public SocketAddress getAddress(int id) {
+        if (id < 0 || id >= MAX_ID) {
+            return null;
+        }
+        mLock.lock();
+        try {
+            SocketAddress address = mAddresses[id];
+            if (address != null) {
+                mLastActiveTime[id] = System.currentTimeMillis();
+            }
+            return address;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 必须持有 mLock
+     * 优先使用未分配的编号，其次是空闲超时的编号，编号耗尽时回收最久未使用的编号
+     */
+    private int findFreeId(long now) {
+        int oldest = mNextId;
+        for (int i = 0; i < MAX_ID; i++) {
+            int id = (mNextId + i) % MAX_ID;
+            if (mAddresses[id] == null || now - mLastActiveTime[id] > IDLE_TIMEOUT) {
+                oldest = id;
+                break;
+            }
+            if (mLastActiveTime[id] < mLastActiveTime[oldest]) {
+                oldest = id;
+            }
+        }
+
+        if (mAddresses[oldest] != null) {
+            mIds.remove(mAddresses[oldest]);
+            mAddresses[oldest] = null;
+        }
+        mNextId = (oldest + 1) % MAX_ID;
+        return oldest;
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mIds.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
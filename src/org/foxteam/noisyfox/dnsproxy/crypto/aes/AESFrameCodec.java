@@ -0,0 +1,102 @@
+package org.foxteam.noisyfox.dnsproxy.crypto.aes;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.foxteam.noisyfox.dnsproxy.crypto.CRC16;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.Security;
+
+/**
+ * Created by Noisyfox on 2015/3/20.
+ * 基于缓冲区的 AES 帧编解码，帧格式与 AESFrame 相同，供非阻塞IO使用
+ * <p/>
+ * 每一帧都用相同的密钥和初始向量独立加密，因此可以在任意时刻从缓冲区中取出完整的帧解码，
+ * 不完整的帧留在缓冲区中等待后续数据。只能在一个线程中使用
+ */
+public class AESFrameCodec {
+    private static final String ALGORITHM = "AES/CBC/PKCS7Padding";
+    private static final int BLOCK_SIZE = 16;
+
+    static {
+        // 加载 bouncycastle
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private final Key mKey;
+    private final IvParameterSpec mIvParameterSpec;
+    private final Cipher mCipher;
+    private final byte mCRC[] = new byte[2];
+
+    public AESFrameCodec(byte key[], byte iv[]) {
+        mKey = new SecretKeySpec(key, "AES");
+        mIvParameterSpec = new IvParameterSpec(iv);
+        try {
+            mCipher = Cipher.getInstance(ALGORITHM, "BC");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 从 in 中解码所有完整的帧，明文依次写入 out，不完整的帧保留在 in 中
+     *
+     * @param in  处于读模式的缓冲区
+     * @param out 处于写模式的缓冲区，剩余空间不少于 in 中的数据量
+     * @throws IOException 帧格式错误或校验失败，连接应当关闭
+     */
+    public void decode(ByteBuffer in, ByteBuffer out) throws IOException {
+        byte data[] = in.array();
+        while (in.remaining() >= 2) {
+            int pos = in.arrayOffset() + in.position();
+            int payloadSize = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            if (payloadSize == 0 || payloadSize % BLOCK_SIZE != 0) {
+                throw new IOException("Unexpected payload size " + payloadSize);
+            }
+            if (in.remaining() < 2 + payloadSize + 2) {
+                return;
+            }
+
+            CRC16.doCRC(data, pos + 2, payloadSize, mCRC, 0);
+            if (mCRC[0] != data[pos + 2 + payloadSize] || mCRC[1] != data[pos + 2 + payloadSize + 1]) {
+                throw new IOException("CRC mismatch");
+            }
+
+            try {
+                mCipher.init(Cipher.DECRYPT_MODE, mKey, mIvParameterSpec);
+                int count = mCipher.doFinal(data, pos + 2, payloadSize,
+                        out.array(), out.arrayOffset() + out.position());
+                out.position(out.position() + count);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            in.position(in.position() + 2 + payloadSize + 2);
+        }
+    }
+
+    /**
+     * 把一段明文加密为一个完整的帧
+     */
+    public ByteBuffer encode(byte data[], int offset, int length) throws IOException {
+        if (length <= 0 || length > AESFrame.PAYLOAD_MAX_LENGTH - BLOCK_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        int payloadSize = (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        byte frame[] = new byte[2 + payloadSize + 2];
+        try {
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, mIvParameterSpec);
+            payloadSize = mCipher.doFinal(data, offset, length, frame, 2);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        frame[0] = (byte) ((payloadSize >> 8) & 0xFF);
+        frame[1] = (byte) (payloadSize & 0xFF);
+        CRC16.doCRC(frame, 2, payloadSize, frame, 2 + payloadSize);
+        return ByteBuffer.wrap(frame, 0, 2 + payloadSize + 2);
+    }
+}
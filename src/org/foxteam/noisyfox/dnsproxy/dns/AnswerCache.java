@@ -0,0 +1,405 @@
+package org.foxteam.noisyfox.dnsproxy.dns;
+
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/8.
+ * 按问题（域名、类型、类）缓存DNS应答，缓存时间取应答中记录的最小TTL
+ * 超过容量时淘汰最久未使用的条目
+ * <p/>
+ * NXDOMAIN/NODATA 否定应答按照 RFC 2308 单独存放，有独立的容量和最长缓存时间，
+ * 不会挤占正常应答的空间
+ * <p/>
+ * 开启预取后记录每个条目的命中次数，经常被命中的条目剩余的缓存时间不足一定比例时，
+ * 由 claimRefresh 通知调用者提前刷新，刷新得到的应答在条目过期前替换旧的条目
+ * <p/>
+ * 开启 serve-stale (RFC 8767) 后，过期的条目继续保留一段时间，
+ * 服务器迟迟没有响应时由 getStale 取出，以较短的TTL应答
+ */
+public class AnswerCache {
+    private static final int MAX_TTL = 24 * 60 * 60; // 最长缓存一天
+    private static final int STALE_TTL = 30; // RFC 8767 建议的过期应答TTL
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, CacheEntry> mEntries;
+    private final LinkedHashMap<String, CacheEntry> mNegativeEntries;
+    private final int mNegativeMaxTtl;
+    private int mPrefetchMinHits = 0; // 为0时不预取
+    private int mPrefetchThreshold = 0; // 剩余缓存时间的百分比
+    private long mMaxStale = 0L; // 过期后继续保留的时间，单位毫秒
+
+    private final AtomicLong mHitCount = new AtomicLong(0L);
+    private final AtomicLong mNegativeHitCount = new AtomicLong(0L);
+    private final AtomicLong mMissCount = new AtomicLong(0L);
+    private final AtomicLong mStaleHitCount = new AtomicLong(0L);
+
+    public AnswerCache(int maxSize) {
+        this(maxSize, 0, 0);
+    }
+
+    /**
+     * @param negativeMaxSize 否定应答的最大条目数，为0时不缓存否定应答
+     * @param negativeMaxTtl  否定应答的最长缓存时间，单位秒
+     */
+    public AnswerCache(int maxSize, int negativeMaxSize, int negativeMaxTtl) {
+        mEntries = newLruMap(maxSize);
+        mNegativeEntries = newLruMap(negativeMaxSize);
+        mNegativeMaxTtl = Math.min(negativeMaxTtl, MAX_TTL);
+    }
+
+    /**
+     * 开启预取，必须在使用缓存之前调用
+     *
+     * @param minHits   条目至少被命中这么多次才会预取
+     * @param threshold 剩余缓存时间不超过总缓存时间的百分之多少时预取
+     */
+    public void enablePrefetch(int minHits, int threshold) {
+        mPrefetchMinHits = minHits;
+        mPrefetchThreshold = threshold;
+    }
+
+    /**
+     * 开启 serve-stale，必须在使用缓存之前调用
+     *
+     * @param maxStale 条目过期后最多保留多少秒
+     */
+    public void enableServeStale(int maxStale) {
+        mMaxStale = maxStale * 1000L;
+    }
+
+    private static LinkedHashMap<String, CacheEntry> newLruMap(final int maxSize) {
+        return new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * 缓存一个从服务器返回的响应，只缓存带有应答记录的成功响应，以及带有 SOA 记录的否定应答
+     */
+    public void put(byte data[], int offset, int length) {
+        if (length < DNSPacket.HEADER_SIZE || !DNSPacket.isResponse(data, offset)
+                || DNSPacket.isTruncated(data, offset)) {
+            return;
+        }
+
+        boolean negative;
+        int ttl;
+        int rcode = DNSPacket.getRcode(data, offset);
+        if (rcode == DNSPacket.RCODE_NOERROR && DNSPacket.getAnswerCount(data, offset) != 0) {
+            negative = false;
+            ttl = Math.min(DNSPacket.getMinTtl(data, offset, length), MAX_TTL);
+        } else if (rcode == DNSPacket.RCODE_NOERROR || rcode == DNSPacket.RCODE_NXDOMAIN) {
+            if (mNegativeMaxTtl <= 0) {
+                return;
+            }
+            negative = true;
+            ttl = Math.min(DNSPacket.getNegativeTtl(data, offset, length), mNegativeMaxTtl);
+        } else {
+            return;
+        }
+        if (ttl <= 0) {
+            return;
+        }
+
+        String key = DNSPacket.getQuestionKey(data, offset, length);
+        if (key == null) {
+            return;
+        }
+
+        byte answer[] = new byte[length];
+        System.arraycopy(data, offset, answer, 0, length);
+        long now = System.currentTimeMillis();
+        CacheEntry entry = new CacheEntry(answer, now, now + ttl * 1000L);
+
+        mLock.lock();
+        try {
+            if (negative) {
+                mNegativeEntries.put(key, entry);
+                mEntries.remove(key);
+            } else {
+                mEntries.put(key, entry);
+                mNegativeEntries.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 查找缓存的应答，命中时从 pool 中取出大小合适的数据包并写入应答，
+     * TTL扣除已缓存的时间，事务ID改写为 transactionId
+     *
+     * @return 写入应答的数据包，未命中时返回null
+     */
+    public DatagramPacket get(String key, int transactionId, PacketPool pool) {
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        boolean negative = false;
+        mLock.lock();
+        try {
+            entry = getAlive(mEntries, key, now);
+            if (entry == null) {
+                entry = getAlive(mNegativeEntries, key, now);
+                negative = true;
+            }
+            if (entry != null) {
+                entry.mHits++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        if (negative) {
+            mNegativeHitCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+        }
+
+        int length = entry.mData.length;
+        DatagramPacket packet = pool.obtain(entry.mData, 0, length);
+        byte out[] = packet.getData();
+        DNSPacket.setTransactionId(out, 0, transactionId);
+        DNSPacket.decreaseTtl(out, 0, length, (int) ((now - entry.mStoreTime) / 1000L));
+
+        return packet;
+    }
+
+    /**
+     * 缓存中是否有该问题的应答，包括已过期但仍在 serve-stale 保留期内的应答
+     */
+    public boolean containsStale(String key) {
+        if (mMaxStale <= 0) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            return getRetained(mEntries, key, now) != null || getRetained(mNegativeEntries, key, now) != null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取出可能已经过期的应答，用于服务器没能及时响应的请求。
+     * 应答未过期时与 get 相同，已过期时所有记录的TTL改写为 STALE_TTL
+     *
+     * @return 写入应答的数据包，没有保留的应答时返回null
+     */
+    public DatagramPacket getStale(String key, int transactionId, PacketPool pool) {
+        if (mMaxStale <= 0) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        mLock.lock();
+        try {
+            entry = getRetained(mEntries, key, now);
+            if (entry == null) {
+                entry = getRetained(mNegativeEntries, key, now);
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (entry == null) {
+            return null;
+        }
+        mStaleHitCount.incrementAndGet();
+
+        int length = entry.mData.length;
+        DatagramPacket packet = pool.obtain(entry.mData, 0, length);
+        byte out[] = packet.getData();
+        DNSPacket.setTransactionId(out, 0, transactionId);
+        if (now < entry.mExpireTime) {
+            DNSPacket.decreaseTtl(out, 0, length, (int) ((now - entry.mStoreTime) / 1000L));
+        } else {
+            DNSPacket.setTtl(out, 0, length, STALE_TTL);
+        }
+
+        return packet;
+    }
+
+    /**
+     * 检查条目是否需要预取，需要时将其标记为刷新中，同一个条目在被替换前只会返回一次true
+     */
+    public boolean claimRefresh(String key) {
+        if (mPrefetchMinHits <= 0) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            CacheEntry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = mNegativeEntries.get(key);
+            }
+            if (entry == null || entry.mRefreshing || entry.mHits < mPrefetchMinHits) {
+                return false;
+            }
+            long remain = entry.mExpireTime - now;
+            if (remain <= 0 || remain * 100L > (entry.mExpireTime - entry.mStoreTime) * mPrefetchThreshold) {
+                return false;
+            }
+            entry.mRefreshing = true;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 预取没能发出时撤销 claimRefresh 的标记，之后的命中可以再次尝试
+     */
+    public void cancelRefresh(String key) {
+        mLock.lock();
+        try {
+            CacheEntry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = mNegativeEntries.get(key);
+            }
+            if (entry != null) {
+                entry.mRefreshing = false;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 必须持有 mLock
+     * 已过期的条目在 serve-stale 保留期内不会被删除，但也不会返回
+     */
+    private CacheEntry getAlive(LinkedHashMap<String, CacheEntry> entries, String key, long now) {
+        CacheEntry entry = getRetained(entries, key, now);
+        if (entry != null && now >= entry.mExpireTime) {
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * 必须持有 mLock
+     * 返回未超出 serve-stale 保留期的条目，超出的条目被删除
+     */
+    private CacheEntry getRetained(LinkedHashMap<String, CacheEntry> entries, String key, long now) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && now >= entry.mExpireTime + mMaxStale) {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * 取出所有未过期的条目，供 CacheSnapshot 保存
+     */
+    List<CacheEntry> getEntries(boolean negative) {
+        long now = System.currentTimeMillis();
+        mLock.lock();
+        try {
+            LinkedHashMap<String, CacheEntry> entries = negative ? mNegativeEntries : mEntries;
+            List<CacheEntry> result = new ArrayList<CacheEntry>(entries.size());
+            for (CacheEntry entry : entries.values()) {
+                if (now < entry.mExpireTime) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 恢复 CacheSnapshot 中保存的条目，缓存中已有的条目不会被覆盖
+     */
+    void restore(CacheEntry entry, boolean negative) {
+        String key = DNSPacket.getQuestionKey(entry.mData, 0, entry.mData.length);
+        if (key == null) {
+            return;
+        }
+        mLock.lock();
+        try {
+            LinkedHashMap<String, CacheEntry> entries = negative ? mNegativeEntries : mEntries;
+            if (!entries.containsKey(key)) {
+                entries.put(key, entry);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getNegativeHitCount() {
+        return mNegativeHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getStaleHitCount() {
+        return mStaleHitCount.get();
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int negativeSize() {
+        mLock.lock();
+        try {
+            return mNegativeEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AnswerCache size:%d negative:%d hit:%d negative hit:%d stale hit:%d miss:%d",
+                size(), negativeSize(), getHitCount(), getNegativeHitCount(), getStaleHitCount(), getMissCount());
+    }
+
+    static class CacheEntry {
+        final byte mData[];
+        final long mStoreTime;
+        final long mExpireTime;
+        // 以下字段由 mLock 保护
+        private int mHits = 0;
+        private boolean mRefreshing = false;
+
+        CacheEntry(byte data[], long storeTime, long expireTime) {
+            mData = data;
+            mStoreTime = storeTime;
+            mExpireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.foxteam.noisyfox.dnsproxy.dns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Created by Noisyfox on 2015/3/16.
+ * 把应答缓存保存到文件中，重启后重新载入，避免启动时大量请求同时穿过隧道
+ * <p/>
+ * 文件通过内存映射读写，格式为：
+ * 魔数(4) 版本(4) 条目数(4)，之后每个条目为 类型(1) 缓存时间(8) 过期时间(8) 长度(2) 应答数据
+ * 时间均为墙上时间，载入时丢弃已过期的条目，其余条目的TTL在取出时按缓存时间扣除
+ */
+public class CacheSnapshot {
+    private static final int MAGIC = 0x44504353; // "DPCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_HEADER_SIZE = 19;
+
+    private static final byte TYPE_POSITIVE = 0;
+    private static final byte TYPE_NEGATIVE = 1;
+
+    /**
+     * 保存缓存，先写入临时文件再替换原有的文件，写入中途退出不会破坏之前的快照
+     *
+     * @return 保存的条目数
+     */
+    public static int save(AnswerCache cache, File file) throws IOException {
+        List<AnswerCache.CacheEntry> positive = cache.getEntries(false);
+        List<AnswerCache.CacheEntry> negative = cache.getEntries(true);
+
+        long size = HEADER_SIZE;
+        for (AnswerCache.CacheEntry entry : positive) {
+            size += ENTRY_HEADER_SIZE + entry.mData.length;
+        }
+        for (AnswerCache.CacheEntry entry : negative) {
+            size += ENTRY_HEADER_SIZE + entry.mData.length;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(positive.size() + negative.size());
+            writeEntries(buffer, positive, TYPE_POSITIVE);
+            writeEntries(buffer, negative, TYPE_NEGATIVE);
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // 部分平台上 renameTo 不能覆盖已存在的文件
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace snapshot " + file);
+            }
+        }
+
+        return positive.size() + negative.size();
+    }
+
+    private static void writeEntries(MappedByteBuffer buffer, List<AnswerCache.CacheEntry> entries, byte type) {
+        for (AnswerCache.CacheEntry entry : entries) {
+            buffer.put(type);
+            buffer.putLong(entry.mStoreTime);
+            buffer.putLong(entry.mExpireTime);
+            buffer.putShort((short) entry.mData.length);
+            buffer.put(entry.mData);
+        }
+    }
+
+    /**
+     * 载入快照中未过期的条目
+     *
+     * @return 载入的条目数，文件不存在时返回0
+     */
+    public static int load(AnswerCache cache, File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Broken snapshot " + file);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown snapshot format " + file);
+            }
+
+            long now = System.currentTimeMillis();
+            int count = buffer.getInt();
+            int loaded = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    byte type = buffer.get();
+                    long storeTime = buffer.getLong();
+                    long expireTime = buffer.getLong();
+                    int length = buffer.getShort() & 0xFFFF;
+                    byte data[] = new byte[length];
+                    buffer.get(data);
+
+                    // 时钟被回拨时缓存时间晚于当前时间，无法确定已经过去多久，丢弃
+                    if (expireTime <= now || storeTime > now || length < DNSPacket.HEADER_SIZE) {
+                        continue;
+                    }
+                    cache.restore(new AnswerCache.CacheEntry(data, storeTime, expireTime), type == TYPE_NEGATIVE);
+                    loaded++;
+                }
+            } catch (BufferUnderflowException ignored) {
+                // 文件被截断，保留已经读出的条目
+            }
+
+            return loaded;
+        } finally {
+            raf.close();
+        }
+    }
+}
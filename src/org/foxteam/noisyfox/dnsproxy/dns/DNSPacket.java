@@ -0,0 +1,419 @@
+package org.foxteam.noisyfox.dnsproxy.dns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by Noisyfox on 2015/3/8.
+ * DNS报文的解析工具，只解析转发时需要的字段，不构造完整的报文对象
+ * <p/>
+ * 报文格式见 RFC 1035 4.1
+ */
+public class DNSPacket {
+    public static final int HEADER_SIZE = 12;
+
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_OPT = 41;
+
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+
+    private static final int MAX_POINTER_JUMPS = 16;
+
+    public static int getTransactionId(byte data[], int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    public static void setTransactionId(byte data[], int offset, int id) {
+        data[offset] = (byte) ((id >> 8) & 0xFF);
+        data[offset + 1] = (byte) (id & 0xFF);
+    }
+
+    public static boolean isResponse(byte data[], int offset) {
+        return (data[offset + 2] & 0x80) != 0;
+    }
+
+    public static boolean isTruncated(byte data[], int offset) {
+        return (data[offset + 2] & 0x02) != 0;
+    }
+
+    public static int getRcode(byte data[], int offset) {
+        return data[offset + 3] & 0x0F;
+    }
+
+    public static int getQuestionCount(byte data[], int offset) {
+        return readUInt16(data, offset + 4);
+    }
+
+    public static int getAnswerCount(byte data[], int offset) {
+        return readUInt16(data, offset + 6);
+    }
+
+    public static int getAuthorityCount(byte data[], int offset) {
+        return readUInt16(data, offset + 8);
+    }
+
+    public static int getAdditionalCount(byte data[], int offset) {
+        return readUInt16(data, offset + 10);
+    }
+
+    /**
+     * 提取报文的问题，格式为 小写域名/类型/类/标志
+     * <p/>
+     * 标志依次为：c 头部的CD位，e 带有OPT记录，d OPT记录中的DO位。
+     * 这些标志决定应答是否带DNSSEC记录、是否经过验证，标志不同的请求不能共用应答。
+     * 按照 RFC 3225 和 RFC 6891，应答会带回请求中的这些标志，请求和应答得到的问题相同
+     *
+     * @return 报文不合法或者问题数不为1时返回null
+     */
+    public static String getQuestionKey(byte data[], int offset, int length) {
+        int end = offset + length;
+        if (length < HEADER_SIZE || getQuestionCount(data, offset) != 1) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        int pos = readName(data, offset, offset + HEADER_SIZE, end, key);
+        if (pos < 0 || pos + 4 > end) {
+            return null;
+        }
+        key.append('/').append(readUInt16(data, pos)).append('/').append(readUInt16(data, pos + 2)).append('/');
+
+        if ((data[offset + 3] & 0x10) != 0) {
+            key.append('c');
+        }
+        int opt = findOpt(data, offset, end);
+        if (opt >= 0) {
+            key.append('e');
+            if ((data[opt + 6] & 0x80) != 0) {
+                key.append('d');
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * 上游不一定带回请求的标志：不支持 EDNS 的上游返回的应答没有OPT记录，有的上游不复制CD位。
+     * 给出由这种应答得到的问题可能对应的其他请求的问题，格式与 getQuestionKey 相同
+     *
+     * @param key 由应答得到的问题
+     */
+    public static List<String> getRequestQuestionKeys(String key) {
+        int split = key.lastIndexOf('/') + 1;
+        String question = key.substring(0, split);
+        String flags = key.substring(split);
+        boolean cd = flags.indexOf('c') >= 0;
+        boolean edns = flags.indexOf('e') >= 0;
+
+        String cdFlags[] = cd ? new String[]{"c"} : new String[]{"", "c"};
+        String ednsFlags[] = edns ? new String[]{flags.substring(cd ? 1 : 0)} : new String[]{"", "e", "ed"};
+        List<String> keys = new ArrayList<String>();
+        for (String c : cdFlags) {
+            for (String e : ednsFlags) {
+                String k = question + c + e;
+                if (!k.equals(key)) {
+                    keys.add(k);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 应答的问题和标志是否与请求相同，不同的应答只能交给请求者，不能按应答中的标志缓存
+     */
+    public static boolean isSameQuestion(byte request[], int requestOffset, int requestLength,
+                                         byte respond[], int respondOffset, int respondLength) {
+        String key = getQuestionKey(respond, respondOffset, respondLength);
+        return key != null && key.equals(getQuestionKey(request, requestOffset, requestLength));
+    }
+
+    /**
+     * 请求者能通过UDP接收的最大应答长度，即OPT记录的类字段，
+     * 没有OPT记录时为512字节，小于512的值按512处理 (RFC 6891 6.2.3, 6.2.5)
+     */
+    public static int getUdpPayloadSize(byte data[], int offset, int length) {
+        int opt = findOpt(data, offset, offset + length);
+        if (opt < 0) {
+            return MIN_UDP_PAYLOAD_SIZE;
+        }
+        return Math.max(MIN_UDP_PAYLOAD_SIZE, readUInt16(data, opt + 2));
+    }
+
+    /**
+     * 查找OPT伪记录
+     *
+     * @return OPT记录类型字段的位置，没有OPT记录或者在找到之前报文已不合法时返回-1
+     */
+    private static int findOpt(byte data[], int offset, int end) {
+        int pos = skipQuestions(data, offset, end);
+        if (pos < 0) {
+            return -1;
+        }
+
+        int count = getAnswerCount(data, offset) + getAuthorityCount(data, offset) + getAdditionalCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = skipName(data, pos, end);
+            if (pos < 0 || pos + 10 > end) {
+                return -1;
+            }
+            if (readUInt16(data, pos) == TYPE_OPT) {
+                return pos;
+            }
+            pos += 10 + readUInt16(data, pos + 8);
+        }
+
+        return -1;
+    }
+
+    /**
+     * 计算报文中所有记录（OPT伪记录除外）的最小TTL
+     *
+     * @return 最小TTL，单位秒；报文不合法时返回-1，没有记录时返回 Integer.MAX_VALUE
+     */
+    public static int getMinTtl(byte data[], int offset, int length) {
+        int end = offset + length;
+        int pos = skipQuestions(data, offset, end);
+        if (pos < 0) {
+            return -1;
+        }
+
+        int minTtl = Integer.MAX_VALUE;
+        int count = getAnswerCount(data, offset) + getAuthorityCount(data, offset) + getAdditionalCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = skipName(data, pos, end);
+            if (pos < 0 || pos + 10 > end) {
+                return -1;
+            }
+            if (readUInt16(data, pos) != TYPE_OPT) {
+                minTtl = Math.min(minTtl, readTtl(data, pos + 4));
+            }
+            pos += 10 + readUInt16(data, pos + 8);
+        }
+        if (pos > end) {
+            return -1;
+        }
+
+        return minTtl;
+    }
+
+    /**
+     * 将报文中所有记录（OPT伪记录除外）的TTL减去指定秒数，最小减到0
+     *
+     * @return 报文是否合法
+     */
+    public static boolean decreaseTtl(byte data[], int offset, int length, int seconds) {
+        return rewriteTtl(data, offset, length, seconds, false);
+    }
+
+    /**
+     * 将报文中所有记录（OPT伪记录除外）的TTL设置为指定值
+     *
+     * @return 报文是否合法
+     */
+    public static boolean setTtl(byte data[], int offset, int length, int ttl) {
+        return rewriteTtl(data, offset, length, ttl, true);
+    }
+
+    private static boolean rewriteTtl(byte data[], int offset, int length, int value, boolean absolute) {
+        int end = offset + length;
+        int pos = skipQuestions(data, offset, end);
+        if (pos < 0) {
+            return false;
+        }
+
+        int count = getAnswerCount(data, offset) + getAuthorityCount(data, offset) + getAdditionalCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = skipName(data, pos, end);
+            if (pos < 0 || pos + 10 > end) {
+                return false;
+            }
+            if (readUInt16(data, pos) != TYPE_OPT) {
+                int ttl = absolute ? value : Math.max(0, readTtl(data, pos + 4) - value);
+                writeUInt32(data, pos + 4, ttl);
+            }
+            pos += 10 + readUInt16(data, pos + 8);
+        }
+
+        return pos <= end;
+    }
+
+    /**
+     * 按照 RFC 2308 第5节计算否定应答的缓存时间，
+     * 取权威部分中 SOA 记录的 TTL 与 MINIMUM 字段的较小值
+     *
+     * @return 缓存时间，单位秒；不是否定应答或者没有 SOA 记录时返回-1
+     */
+    public static int getNegativeTtl(byte data[], int offset, int length) {
+        int rcode = getRcode(data, offset);
+        if (rcode == RCODE_NOERROR) {
+            if (getAnswerCount(data, offset) != 0) {
+                return -1; // 有应答，不是 NODATA
+            }
+        } else if (rcode != RCODE_NXDOMAIN) {
+            return -1;
+        }
+
+        int end = offset + length;
+        int pos = skipQuestions(data, offset, end);
+        if (pos < 0) {
+            return -1;
+        }
+
+        int count = getAuthorityCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = skipName(data, pos, end);
+            if (pos < 0 || pos + 10 > end) {
+                return -1;
+            }
+            int rdLength = readUInt16(data, pos + 8);
+            if (readUInt16(data, pos) == TYPE_SOA) {
+                int ttl = readTtl(data, pos + 4);
+                // SOA rdata: MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+                int rdEnd = pos + 10 + rdLength;
+                int p = skipName(data, pos + 10, rdEnd);
+                if (p < 0) {
+                    return -1;
+                }
+                p = skipName(data, p, rdEnd);
+                if (p < 0 || p + 20 > rdEnd) {
+                    return -1;
+                }
+                return Math.min(ttl, readTtl(data, p + 16));
+            }
+            pos += 10 + rdLength;
+        }
+
+        return -1;
+    }
+
+    /**
+     * 将请求报文改写为 SERVFAIL 响应，问题部分保持不变
+     *
+     * @return 改写后的报文长度，请求不合法时返回-1
+     */
+    public static int toServerFailure(byte data[], int offset, int length) {
+        int pos = skipQuestions(data, offset, offset + length);
+        if (pos < 0) {
+            return -1;
+        }
+        data[offset + 2] = (byte) ((data[offset + 2] & 0x79) | 0x80); // QR=1, 保留 Opcode 和 RD
+        data[offset + 3] = (byte) (0x80 | RCODE_SERVFAIL); // RA=1
+        for (int i = 6; i < HEADER_SIZE; i++) {
+            data[offset + i] = 0;
+        }
+
+        return pos - offset;
+    }
+
+    /**
+     * 跳过头部和问题部分
+     *
+     * @return 第一条资源记录的位置，报文不合法时返回-1
+     */
+    public static int skipQuestions(byte data[], int offset, int end) {
+        if (end - offset < HEADER_SIZE) {
+            return -1;
+        }
+        int pos = offset + HEADER_SIZE;
+        int count = getQuestionCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = skipName(data, pos, end);
+            if (pos < 0 || pos + 4 > end) {
+                return -1;
+            }
+            pos += 4;
+        }
+        return pos;
+    }
+
+    /**
+     * 跳过一个域名
+     *
+     * @return 域名之后的位置，域名不合法时返回-1
+     */
+    public static int skipName(byte data[], int pos, int end) {
+        while (pos < end) {
+            int len = data[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2 <= end ? pos + 2 : -1;
+            }
+            if ((len & 0xC0) != 0) {
+                return -1;
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * 读取一个域名（支持压缩指针），以小写、点分隔的形式追加到 out
+     *
+     * @return 域名之后的位置，域名不合法时返回-1
+     */
+    public static int readName(byte data[], int offset, int pos, int end, StringBuilder out) {
+        int next = -1;
+        int jumps = 0;
+        while (pos < end) {
+            int len = data[pos] & 0xFF;
+            if (len == 0) {
+                if (out.length() == 0) {
+                    out.append('.');
+                }
+                return next == -1 ? pos + 1 : next;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (pos + 2 > end || ++jumps > MAX_POINTER_JUMPS) {
+                    return -1;
+                }
+                if (next == -1) {
+                    next = pos + 2;
+                }
+                pos = offset + (((len & 0x3F) << 8) | (data[pos + 1] & 0xFF));
+                continue;
+            }
+            if ((len & 0xC0) != 0 || pos + 1 + len > end) {
+                return -1;
+            }
+            if (out.length() != 0) {
+                out.append('.');
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                char c = (char) (data[i] & 0xFF);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                out.append(c);
+            }
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    public static int readUInt16(byte data[], int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    /**
+     * 读取 TTL，按照 RFC 2181 第8节，最高位为1的值视为0
+     */
+    public static int readTtl(byte data[], int pos) {
+        int ttl = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+        return ttl < 0 ? 0 : ttl;
+    }
+
+    public static void writeUInt32(byte data[], int pos, int value) {
+        data[pos] = (byte) ((value >> 24) & 0xFF);
+        data[pos + 1] = (byte) ((value >> 16) & 0xFF);
+        data[pos + 2] = (byte) ((value >> 8) & 0xFF);
+        data[pos + 3] = (byte) (value & 0xFF);
+    }
+}
@@ -0,0 +1,282 @@
+package org.foxteam.noisyfox.dnsproxy.dns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by Noisyfox on 2015/3/18.
+ * IP地址段集合，用于识别被污染的DNS应答
+ * <p/>
+ * 地址段在载入时合并为互不重叠的区间并排序，查找时二分。
+ * IPv4 和 IPv6 分开存放，IPv6 地址按两个64位整数比较
+ */
+public class PrefixSet {
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+
+    private long mV4Starts[] = new long[0];
+    private long mV4Ends[] = new long[0];
+    // 每个区间占两个元素：高64位、低64位
+    private long mV6Starts[] = new long[0];
+    private long mV6Ends[] = new long[0];
+    private int mPrefixCount = 0;
+
+    /**
+     * 从文件中读取地址段，每行一个，格式为 地址/前缀长度，省略前缀长度表示单个地址，
+     * 忽略空行和以 # 开头的注释
+     */
+    public static PrefixSet load(File file) throws IOException {
+        List<String> prefixes = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                prefixes.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+
+        PrefixSet set = new PrefixSet();
+        set.addAll(prefixes);
+        return set;
+    }
+
+    /**
+     * 添加一组地址段，已有的地址段保留
+     *
+     * @throws IllegalArgumentException 地址段格式非法
+     */
+    public void addAll(List<String> prefixes) {
+        List<long[]> v4 = new ArrayList<long[]>();
+        List<long[]> v6 = new ArrayList<long[]>();
+        for (int i = 0; i < mV4Starts.length; i++) {
+            v4.add(new long[]{mV4Starts[i], mV4Ends[i]});
+        }
+        for (int i = 0; i < mV6Starts.length; i += 2) {
+            v6.add(new long[]{mV6Starts[i], mV6Starts[i + 1], mV6Ends[i], mV6Ends[i + 1]});
+        }
+
+        for (String prefix : prefixes) {
+            parsePrefix(prefix, v4, v6);
+            mPrefixCount++;
+        }
+
+        mergeV4(v4);
+        mergeV6(v6);
+    }
+
+    public int size() {
+        return mPrefixCount;
+    }
+
+    private static void parsePrefix(String prefix, List<long[]> v4, List<long[]> v6) {
+        String address = prefix;
+        int length = -1;
+        int slash = prefix.indexOf('/');
+        if (slash >= 0) {
+            address = prefix.substring(0, slash);
+            try {
+                length = Integer.parseInt(prefix.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal prefix " + prefix);
+            }
+        }
+        // 只接受字面地址，避免触发域名解析
+        if (!address.matches("[0-9.]+") && address.indexOf(':') < 0) {
+            throw new IllegalArgumentException("Illegal prefix " + prefix);
+        }
+
+        byte bytes[];
+        try {
+            bytes = InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Illegal prefix " + prefix);
+        }
+        int bits = bytes.length * 8;
+        if (length < 0) {
+            length = bits;
+        }
+        if (length > bits) {
+            throw new IllegalArgumentException("Illegal prefix " + prefix);
+        }
+
+        if (bytes.length == 4) {
+            long start = readLong(bytes, 0, 4);
+            long mask = length == 0 ? 0 : (0xFFFFFFFFL << (32 - length)) & 0xFFFFFFFFL;
+            v4.add(new long[]{start & mask, (start & mask) | (~mask & 0xFFFFFFFFL)});
+        } else {
+            long hi = readLong(bytes, 0, 8);
+            long lo = readLong(bytes, 8, 8);
+            long hiMask = length >= 64 ? -1L : (length == 0 ? 0 : -1L << (64 - length));
+            long loMask = length <= 64 ? 0 : (length == 128 ? -1L : -1L << (128 - length));
+            v6.add(new long[]{hi & hiMask, lo & loMask, (hi & hiMask) | ~hiMask, (lo & loMask) | ~loMask});
+        }
+    }
+
+    private void mergeV4(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+
+        mV4Starts = new long[merged.size()];
+        mV4Ends = new long[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            mV4Starts[i] = merged.get(i)[0];
+            mV4Ends[i] = merged.get(i)[1];
+        }
+    }
+
+    private void mergeV6(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return compare128(a[0], a[1], b[0], b[1]);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && compare128(range[0], range[1], last[2], last[3]) <= 0) {
+                if (compare128(range[2], range[3], last[2], last[3]) > 0) {
+                    last[2] = range[2];
+                    last[3] = range[3];
+                }
+            } else {
+                merged.add(range);
+            }
+        }
+
+        mV6Starts = new long[merged.size() * 2];
+        mV6Ends = new long[merged.size() * 2];
+        for (int i = 0; i < merged.size(); i++) {
+            long[] range = merged.get(i);
+            mV6Starts[i * 2] = range[0];
+            mV6Starts[i * 2 + 1] = range[1];
+            mV6Ends[i * 2] = range[2];
+            mV6Ends[i * 2 + 1] = range[3];
+        }
+    }
+
+    /**
+     * @param address 4字节或16字节的地址
+     */
+    public boolean contains(byte address[], int offset, int length) {
+        if (length == 4) {
+            return containsV4(readLong(address, offset, 4));
+        } else if (length == 16) {
+            return containsV6(readLong(address, offset, 8), readLong(address, offset + 8, 8));
+        }
+        return false;
+    }
+
+    private boolean containsV4(long address) {
+        int low = 0;
+        int high = mV4Starts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (address < mV4Starts[mid]) {
+                high = mid - 1;
+            } else if (address > mV4Ends[mid]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsV6(long hi, long lo) {
+        int low = 0;
+        int high = mV6Starts.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare128(hi, lo, mV6Starts[mid * 2], mV6Starts[mid * 2 + 1]) < 0) {
+                high = mid - 1;
+            } else if (compare128(hi, lo, mV6Ends[mid * 2], mV6Ends[mid * 2 + 1]) > 0) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断应答部分的 A/AAAA 记录中是否有地址属于该集合
+     */
+    public boolean containsAnswerAddress(byte data[], int offset, int length) {
+        int end = offset + length;
+        int pos = DNSPacket.skipQuestions(data, offset, end);
+        if (pos < 0) {
+            return false;
+        }
+
+        int count = DNSPacket.getAnswerCount(data, offset);
+        for (int i = 0; i < count; i++) {
+            pos = DNSPacket.skipName(data, pos, end);
+            if (pos < 0 || pos + 10 > end) {
+                return false;
+            }
+            int type = DNSPacket.readUInt16(data, pos);
+            int rdLength = DNSPacket.readUInt16(data, pos + 8);
+            pos += 10;
+            if (pos + rdLength > end) {
+                return false;
+            }
+            if ((type == TYPE_A || type == TYPE_AAAA) && contains(data, pos, rdLength)) {
+                return true;
+            }
+            pos += rdLength;
+        }
+        return false;
+    }
+
+    private static long readLong(byte data[], int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * 按无符号数比较两个128位整数
+     */
+    private static int compare128(long hi1, long lo1, long hi2, long lo2) {
+        if (hi1 != hi2) {
+            return hi1 + Long.MIN_VALUE < hi2 + Long.MIN_VALUE ? -1 : 1;
+        }
+        if (lo1 != lo2) {
+            return lo1 + Long.MIN_VALUE < lo2 + Long.MIN_VALUE ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,222 @@
+package org.foxteam.noisyfox.dnsproxy.dns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Created by Noisyfox on 2015/3/17.
+ * 按标签倒序组织的域名后缀树，用于判断域名是否属于某个后缀列表
+ * <p/>
+ * 节点保存在平行数组中，标签内容集中存放在一个字节数组里，
+ * 子节点通过 (父节点, 标签) 为键的开放寻址哈希表查找。
+ * 匹配直接读取报文中的问题域名，耗时与标签数成正比，且不分配任何对象
+ * <p/>
+ * 构建完成后只读，可以被多个线程同时匹配
+ */
+public class SuffixTrie {
+    private static final int ROOT = 0;
+    private static final int NO_MATCH = -1;
+    private static final int MATCHED = -2;
+    private static final int MAX_LABELS = 127;
+
+    private int mNodeCount = 1; // 0 为根节点
+    private int mParents[] = new int[64];
+    private int mLabelOffsets[] = new int[64];
+    private byte mLabelLengths[] = new byte[64];
+    private boolean mTerminals[] = new boolean[64];
+
+    private byte mLabels[] = new byte[1024];
+    private int mLabelsSize = 0;
+
+    private int mTable[] = new int[128]; // 存放节点编号，0表示空位
+    private int mSuffixCount = 0;
+
+    /**
+     * 从文件中读取后缀列表，每行一个后缀，忽略空行和以 # 开头的注释
+     */
+    public static SuffixTrie load(File file) throws IOException {
+        SuffixTrie trie = new SuffixTrie();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                trie.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return trie;
+    }
+
+    /**
+     * 添加一个后缀，例如 "example.com" 同时匹配 example.com 和 www.example.com
+     */
+    public void add(String suffix) {
+        String labels[] = suffix.toLowerCase().split("\\.");
+        int node = ROOT;
+        boolean added = false;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            byte label[] = labels[i].getBytes(StandardCharsets.UTF_8);
+            if (label.length == 0) {
+                continue; // 允许首尾的点
+            }
+            if (label.length > 63) {
+                throw new IllegalArgumentException("Illegal suffix " + suffix);
+            }
+            int child = findChild(node, label, 0, label.length);
+            if (child == NO_MATCH) {
+                child = addChild(node, label);
+            }
+            node = child;
+            added = true;
+        }
+        if (added && !mTerminals[node]) {
+            mTerminals[node] = true;
+            mSuffixCount++;
+        }
+    }
+
+    public int size() {
+        return mSuffixCount;
+    }
+
+    /**
+     * 判断报文中第一个问题的域名是否匹配某个后缀
+     */
+    public boolean matches(byte data[], int offset, int length) {
+        if (length < DNSPacket.HEADER_SIZE || DNSPacket.getQuestionCount(data, offset) == 0) {
+            return false;
+        }
+        return match(data, offset + DNSPacket.HEADER_SIZE, offset + length, 0) == MATCHED;
+    }
+
+    /**
+     * 递归到域名的最后一个标签，再从根节点开始逐级向前匹配
+     *
+     * @return 匹配到的节点；完全不匹配时返回 NO_MATCH，已匹配到某个后缀时返回 MATCHED
+     */
+    private int match(byte data[], int pos, int end, int depth) {
+        if (pos >= end || depth > MAX_LABELS) {
+            return NO_MATCH;
+        }
+        int len = data[pos] & 0xFF;
+        if (len == 0) {
+            return ROOT;
+        }
+        if ((len & 0xC0) != 0 || pos + 1 + len > end) {
+            return NO_MATCH; // 问题中不应出现压缩指针
+        }
+
+        int parent = match(data, pos + 1 + len, end, depth + 1);
+        if (parent < 0) {
+            return parent;
+        }
+        int child = findChild(parent, data, pos + 1, len);
+        if (child == NO_MATCH) {
+            return NO_MATCH;
+        }
+        return mTerminals[child] ? MATCHED : child;
+    }
+
+    private int findChild(int parent, byte label[], int offset, int length) {
+        int mask = mTable.length - 1;
+        for (int i = hash(parent, label, offset, length) & mask; ; i = (i + 1) & mask) {
+            int node = mTable[i];
+            if (node == 0) {
+                return NO_MATCH;
+            }
+            if (mParents[node] == parent && labelEquals(node, label, offset, length)) {
+                return node;
+            }
+        }
+    }
+
+    private boolean labelEquals(int node, byte label[], int offset, int length) {
+        if (mLabelLengths[node] != length) {
+            return false;
+        }
+        int start = mLabelOffsets[node];
+        for (int i = 0; i < length; i++) {
+            if (mLabels[start + i] != toLower(label[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int addChild(int parent, byte label[]) {
+        if (mNodeCount == mParents.length) {
+            int capacity = mParents.length * 2;
+            mParents = copyOf(mParents, capacity);
+            mLabelOffsets = copyOf(mLabelOffsets, capacity);
+            byte lengths[] = new byte[capacity];
+            System.arraycopy(mLabelLengths, 0, lengths, 0, mNodeCount);
+            mLabelLengths = lengths;
+            boolean terminals[] = new boolean[capacity];
+            System.arraycopy(mTerminals, 0, terminals, 0, mNodeCount);
+            mTerminals = terminals;
+        }
+        while (mLabelsSize + label.length > mLabels.length) {
+            byte labels[] = new byte[mLabels.length * 2];
+            System.arraycopy(mLabels, 0, labels, 0, mLabelsSize);
+            mLabels = labels;
+        }
+
+        int node = mNodeCount++;
+        mParents[node] = parent;
+        mLabelOffsets[node] = mLabelsSize;
+        mLabelLengths[node] = (byte) label.length;
+        System.arraycopy(label, 0, mLabels, mLabelsSize, label.length);
+        mLabelsSize += label.length;
+
+        if (mNodeCount * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        } else {
+            insert(node);
+        }
+        return node;
+    }
+
+    private void rehash(int capacity) {
+        mTable = new int[capacity];
+        for (int node = 1; node < mNodeCount; node++) {
+            insert(node);
+        }
+    }
+
+    private void insert(int node) {
+        int mask = mTable.length - 1;
+        int i = hash(mParents[node], mLabels, mLabelOffsets[node], mLabelLengths[node]) & mask;
+        while (mTable[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        mTable[i] = node;
+    }
+
+    private static int hash(int parent, byte label[], int offset, int length) {
+        int h = parent * 0x9E3779B9;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + toLower(label[offset + i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static int[] copyOf(int array[], int capacity) {
+        int copy[] = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -15,6 +15,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p/>
  * 数据包格式：
  * 2字节端口号，2字节数据长度，相应长度的数据
+ * 客户端填写的端口号是请求者编号，见 RequesterTable，服务器只把它作为区分请求者的标识
  */
 public class UDPDataFrame {
 
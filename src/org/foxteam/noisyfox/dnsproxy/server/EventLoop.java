@@ -0,0 +1,334 @@
+package org.foxteam.noisyfox.dnsproxy.server;
+
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+import org.foxteam.noisyfox.dnsproxy.Utils;
+import org.foxteam.noisyfox.dnsproxy.crypto.aes.AESFrameCodec;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Noisyfox on 2015/3/20.
+ * 事件循环，一个线程通过一个 Selector 处理多条已完成握手的隧道
+ * <p/>
+ * 隧道的读取、解密、转发和响应的加密、发送都以非阻塞方式在本线程完成，
+ * 请求经 UpstreamPool 发往上游，响应由 UpstreamPool 的接收线程放入队列后唤醒本线程。
+ * 读取用的缓冲区由同一循环中的所有隧道共享，隧道只保存不完整的帧，空闲的隧道不占用缓冲区
+ */
+public class EventLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_FRAME_SIZE = 2 + 0xFFFF + 2;
+    private static final int MAX_RESPOND_SIZE = 0xFFFF - 16 - 4; // 加密后不超过一个 AES 帧
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024; // 隧道积压的响应超过该值时丢弃新的响应
+
+    private final Selector mSelector;
+    private final UpstreamPool mUpstreamPool;
+    private final SourceLimiter mSourceLimiter;
+    private final PacketPool mPacketPool = PacketPool.getShared();
+
+    private final ConcurrentLinkedQueue<Tunnel> mNewTunnels = new ConcurrentLinkedQueue<Tunnel>();
+    private final AtomicInteger mTunnelCount = new AtomicInteger(0);
+    private final HashSet<Tunnel> mTunnels = new HashSet<Tunnel>();
+    private final ConcurrentLinkedQueue<Respond> mResponds = new ConcurrentLinkedQueue<Respond>();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer mPlainBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE + MAX_FRAME_SIZE);
+    private final byte mRespondBuffer[] = new byte[4 + PacketPool.MAX_PACKET_SIZE];
+
+    private long mDropCount = 0L;
+
+    public EventLoop(int index, UpstreamPool upstreamPool, SourceLimiter sourceLimiter) throws IOException {
+        super("EventLoop-" + index);
+        mSelector = Selector.open();
+        mUpstreamPool = upstreamPool;
+        mSourceLimiter = sourceLimiter;
+    }
+
+    /**
+     * 交给本循环处理一条已完成握手的隧道，可以在任意线程调用
+     *
+     * @param channel 已设置为非阻塞模式的连接
+     */
+    public void register(SocketChannel channel, byte key[], byte iv[]) {
+        mTunnelCount.incrementAndGet();
+        mNewTunnels.offer(new Tunnel(channel, new AESFrameCodec(key, iv)));
+        mSelector.wakeup();
+    }
+
+    public int getTunnelCount() {
+        return mTunnelCount.get();
+    }
+
+    public void shutdown() {
+        interrupt();
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!interrupted()) {
+                mSelector.select();
+
+                registerNewTunnels();
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    handleTunnel(key, (Tunnel) key.attachment());
+                }
+
+                handleResponds();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Tunnel tunnel : new ArrayList<Tunnel>(mTunnels)) {
+                closeTunnel(tunnel);
+            }
+            Tunnel tunnel;
+            while ((tunnel = mNewTunnels.poll()) != null) {
+                closeQuietly(tunnel.mChannel);
+                mSourceLimiter.disconnect(tunnel.mAddress);
+            }
+            Respond respond;
+            while ((respond = mResponds.poll()) != null) {
+                mPacketPool.release(respond.mPacket);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Utils.showVerbose(getName() + " finished! Dropped " + mDropCount + " respond(s)");
+        }
+    }
+
+    private void registerNewTunnels() {
+        Tunnel tunnel;
+        while ((tunnel = mNewTunnels.poll()) != null) {
+            try {
+                tunnel.mKey = tunnel.mChannel.register(mSelector, SelectionKey.OP_READ, tunnel);
+                mTunnels.add(tunnel);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(tunnel.mChannel);
+                mSourceLimiter.disconnect(tunnel.mAddress);
+                mTunnelCount.decrementAndGet();
+            }
+        }
+    }
+
+    private void handleTunnel(SelectionKey key, Tunnel tunnel) {
+        try {
+            if (key.isReadable() && !readTunnel(tunnel)) {
+                closeTunnel(tunnel);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                flushTunnel(tunnel);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeTunnel(tunnel);
+        }
+    }
+
+    /**
+     * 读取隧道中的数据，解密出所有完整的请求并转发
+     *
+     * @return 连接是否仍然有效
+     */
+    private boolean readTunnel(Tunnel tunnel) throws IOException {
+        ByteBuffer in = mReadBuffer;
+        in.clear();
+        if (tunnel.mPartialFrame != null) {
+            in.put(tunnel.mPartialFrame);
+            tunnel.mPartialFrame = null;
+        }
+        int count = tunnel.mChannel.read(in);
+        if (count == -1) {
+            return false;
+        }
+        in.flip();
+
+        ByteBuffer plain = mPlainBuffer;
+        plain.clear();
+        if (tunnel.mPartialRequest != null) {
+            plain.put(tunnel.mPartialRequest);
+            tunnel.mPartialRequest = null;
+        }
+        tunnel.mCodec.decode(in, plain);
+        tunnel.mPartialFrame = remainingOf(in);
+        plain.flip();
+
+        // 请求格式与 UDPDataFrame 相同：2字节端口号，2字节数据长度，相应长度的数据
+        byte data[] = plain.array();
+        while (plain.remaining() >= 4) {
+            int pos = plain.position();
+            int port = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            if (plain.remaining() < 4 + length) {
+                break;
+            }
+            plain.position(pos + 4 + length);
+
+            Utils.showVerbose("Client request! Port:" + port);
+            if (!mSourceLimiter.tryQuery(tunnel.mAddress)) {
+                Utils.showVerbose("Query rate limited, drop request from " + tunnel.mAddress);
+                continue;
+            }
+            DatagramPacket cached = mUpstreamPool.getCached(data, pos + 4, length);
+            if (cached != null) {
+                sendRespond(tunnel, port, cached.getData(), cached.getLength());
+                mPacketPool.release(cached);
+            } else {
+                mUpstreamPool.send(data, pos + 4, length, port, tunnel);
+            }
+        }
+        tunnel.mPartialRequest = remainingOf(plain);
+        return true;
+    }
+
+    private static byte[] remainingOf(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        byte remaining[] = new byte[buffer.remaining()];
+        buffer.get(remaining);
+        return remaining;
+    }
+
+    /**
+     * 把 UpstreamPool 投递过来的响应写入对应的隧道，隧道已关闭时丢弃
+     */
+    private void handleResponds() {
+        Respond respond;
+        while ((respond = mResponds.poll()) != null) {
+            Tunnel tunnel = respond.mTunnel;
+            DatagramPacket packet = respond.mPacket;
+            if (mTunnels.contains(tunnel)) {
+                try {
+                    sendRespond(tunnel, packet.getPort(), packet.getData(), packet.getLength());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeTunnel(tunnel);
+                }
+            }
+            mPacketPool.release(packet);
+        }
+    }
+
+    /**
+     * 加密一个响应并写入隧道，不能立即写完的部分等待通道可写时再发送
+     */
+    private void sendRespond(Tunnel tunnel, int port, byte data[], int length) throws IOException {
+        if (length > MAX_RESPOND_SIZE || tunnel.mPendingOutput >= MAX_PENDING_OUTPUT) {
+            mDropCount++;
+            return;
+        }
+
+        byte respond[] = mRespondBuffer;
+        respond[0] = (byte) ((port >> 8) & 0xFF);
+        respond[1] = (byte) (port & 0xFF);
+        respond[2] = (byte) ((length >> 8) & 0xFF);
+        respond[3] = (byte) (length & 0xFF);
+        System.arraycopy(data, 0, respond, 4, length);
+        ByteBuffer frame = tunnel.mCodec.encode(respond, 0, 4 + length);
+
+        Utils.showVerbose("Respond send! Length:" + length + " port:" + port);
+        if (tunnel.mOutput.isEmpty()) {
+            tunnel.mChannel.write(frame);
+            if (!frame.hasRemaining()) {
+                return;
+            }
+            tunnel.mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        tunnel.mOutput.offer(frame);
+        tunnel.mPendingOutput += frame.remaining();
+    }
+
+    private void flushTunnel(Tunnel tunnel) throws IOException {
+        while (!tunnel.mOutput.isEmpty()) {
+            ByteBuffer frame = tunnel.mOutput.peek();
+            int before = frame.remaining();
+            tunnel.mChannel.write(frame);
+            tunnel.mPendingOutput -= before - frame.remaining();
+            if (frame.hasRemaining()) {
+                return;
+            }
+            tunnel.mOutput.poll();
+        }
+        tunnel.mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeTunnel(Tunnel tunnel) {
+        if (!mTunnels.remove(tunnel)) {
+            return;
+        }
+        mTunnelCount.decrementAndGet();
+        closeQuietly(tunnel.mChannel);
+        mSourceLimiter.disconnect(tunnel.mAddress);
+        Utils.showVerbose("Tunnel closed!");
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class Tunnel implements UpstreamPool.Callback {
+        private final SocketChannel mChannel;
+        private final InetAddress mAddress;
+        private final AESFrameCodec mCodec;
+        private SelectionKey mKey;
+
+        private byte mPartialFrame[]; // 未接收完整的 AES 帧
+        private byte mPartialRequest[]; // 已解密但不完整的请求
+
+        private final ArrayDeque<ByteBuffer> mOutput = new ArrayDeque<ByteBuffer>();
+        private int mPendingOutput = 0;
+
+        private Tunnel(SocketChannel channel, AESFrameCodec codec) {
+            mChannel = channel;
+            mAddress = channel.socket().getInetAddress();
+            mCodec = codec;
+        }
+
+        /**
+         * 在 UpstreamPool 的接收线程中调用，响应交给事件循环线程处理
+         */
+        @Override
+        public void onRespond(int port, byte data[], int offset, int length) {
+            DatagramPacket packet = mPacketPool.obtain(data, offset, length);
+            packet.setPort(port);
+            mResponds.offer(new Respond(this, packet));
+            mSelector.wakeup();
+        }
+    }
+
+    private static class Respond {
+        private final Tunnel mTunnel;
+        private final DatagramPacket mPacket;
+
+        private Respond(Tunnel tunnel, DatagramPacket packet) {
+            mTunnel = tunnel;
+            mPacket = packet;
+        }
+    }
+}
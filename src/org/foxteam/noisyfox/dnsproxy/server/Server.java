@@ -1,6 +1,12 @@
 package org.foxteam.noisyfox.dnsproxy.server;
 
 import org.foxteam.noisyfox.dnsproxy.Application;
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+import org.foxteam.noisyfox.dnsproxy.Threads;
+import org.foxteam.noisyfox.dnsproxy.TimerWheel;
+import org.foxteam.noisyfox.dnsproxy.Utils;
+import org.foxteam.noisyfox.dnsproxy.crypto.DH;
+import org.foxteam.noisyfox.dnsproxy.dns.AnswerCache;
 import org.json.simple.JSONObject;
 
 import java.io.IOException;
@@ -9,18 +15,40 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by Noisyfox on 2015/2/24.
  */
 public class Server implements Application {
 
+    private static final String WORKERS_LOOP = "loop";
+    private static final String WORKERS_THREAD = "thread";
+    private static final String WORKERS_VIRTUAL = "virtual";
+    static final int HANDSHAKE_TIMEOUT = 10000;
+
     private int mServerPort = 7373;
-    private int mMaxThread = 50;
+    private int mMaxConnections = 0; // 0 表示按工作模式取默认值
+    private String mWorkers = WORKERS_LOOP;
+    private int mLoopCount = 0; // 0 表示每个CPU一个
+    private int mHandshakeThreads = 16;
+    private int mUpstreamSockets = 16;
+    private int mCacheSize = 65536;
+    private int mNegativeCacheSize = 8192;
+    private int mNegativeCacheMaxTtl = 300;
+    private int mHedgeBudget = 5; // 对冲请求占普通请求的百分比上限
+    private int mHedgeMinDelay = 20;
+    private int mTcpConnections = 2; // 每个上游的TCP连接数，用于重新查询被截断的响应
+    private int mConnectionsPerIp = 65; // 足够一个客户端的最大隧道数加备用隧道
+    private int mQueriesPerIp = 1000;
+    private int mQueryBurstPerIp = 0; // 0 表示每秒请求数的两倍
 
     private ServerSocketChannel mServerChannel;
     private Selector mServerSelector;
@@ -28,15 +56,74 @@ public class Server implements Application {
 
     private ServerThread mThread;
 
-    private ExecutorService mThreadPool = Executors.newFixedThreadPool(mMaxThread);
+    // thread 和 virtual 模式下每个连接占用一个 ServerWorker 线程，连接数由 mConnectionLimit 限制
+    private ExecutorService mThreadPool;
+    private Semaphore mConnectionLimit;
+    // loop 模式下连接先在握手线程池中完成握手，再交给事件循环
+    private ExecutorService mHandshakePool;
+    private EventLoop mLoops[];
+    private UpstreamPool mUpstreamPool;
+    private AnswerCache mAnswerCache; // 所有隧道共用
+    private SourceLimiter mSourceLimiter;
 
-    private InetAddress mDnsProvider;
+    private List<InetSocketAddress> mDnsProviders;
 
     public Server() {
-        try {
-            mDnsProvider = InetAddress.getByName("8.8.8.8");
-        } catch (UnknownHostException ignored) {
+        mDnsProviders = parseUpstreams("8.8.8.8");
+    }
+
+    /**
+     * 解析以逗号分隔的上游列表，每项为 地址[:端口]，IPv6地址带端口时写作 [地址]:端口
+     *
+     * @return 任意一项不合法时返回null
+     */
+    private static List<InetSocketAddress> parseUpstreams(String s) {
+        List<InetSocketAddress> upstreams = new ArrayList<InetSocketAddress>();
+        for (String item : s.split(",")) {
+            if (item.trim().isEmpty()) {
+                continue;
+            }
+            InetSocketAddress address = Utils.parseSocketAddress(item, 53);
+            if (address == null) {
+                return null;
+            }
+            upstreams.add(address);
+        }
+        return upstreams.isEmpty() ? null : upstreams;
+    }
+
+    /**
+     * 握手的总期限，到期时关闭连接，使阻塞在握手中的线程出错返回。
+     * 与 SO_TIMEOUT 不同，每次只发送少量数据的连接也不能拖过期限
+     *
+     * @return 握手完成后需要取消的定时器
+     */
+    static TimerWheel.Timeout scheduleHandshakeDeadline(final SocketChannel channel) {
+        return TimerWheel.getShared().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Utils.showVerbose("Handshake timeout, close connection from " + channel.socket().getInetAddress());
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, HANDSHAKE_TIMEOUT);
+    }
+
+    private static String describeUpstreams(List<InetSocketAddress> upstreams) {
+        StringBuilder sb = new StringBuilder();
+        for (InetSocketAddress address : upstreams) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(address.getAddress().getHostAddress());
+            if (address.getPort() != 53) {
+                sb.append(':').append(address.getPort());
+            }
         }
+        return sb.toString();
     }
 
     private boolean parseArgs(String args[]) {
@@ -65,16 +152,119 @@ public class Server implements Application {
                     return false;
                 }
                 String d = args[++i];
-                try {
-                    mDnsProvider = InetAddress.getByName(d);
-                    continue;
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
+                List<InetSocketAddress> upstreams = parseUpstreams(d);
+                if (upstreams == null) {
+                    System.out.println("Illegal dns provider " + d);
+                    return false;
                 }
-                System.out.println("Illegal dns provider " + d);
+                mDnsProviders = upstreams;
+            }
+        }
+        return true;
+    }
+
+    private boolean readConfig(JSONObject cfg) {
+        if (cfg == null) {
+            return true;
+        }
+
+        String w = (String) cfg.get("workers");
+        if (w != null) {
+            if (!WORKERS_LOOP.equals(w) && !WORKERS_THREAD.equals(w) && !WORKERS_VIRTUAL.equals(w)) {
+                System.out.println("Illegal workers " + w);
                 return false;
             }
+            mWorkers = w;
         }
+
+        String upstreams = (String) cfg.get("upstreams");
+        if (upstreams != null) {
+            List<InetSocketAddress> u = parseUpstreams(upstreams);
+            if (u == null) {
+                System.out.println("Illegal upstreams " + upstreams);
+                return false;
+            }
+            mDnsProviders = u;
+        }
+
+        Integer n = Utils.readConfigInt(cfg, "event_loops", mLoopCount, 0, 256);
+        if (n == null) {
+            return false;
+        }
+        mLoopCount = n;
+
+        Integer h = Utils.readConfigInt(cfg, "handshake_threads", mHandshakeThreads, 1, 1024);
+        if (h == null) {
+            return false;
+        }
+        mHandshakeThreads = h;
+
+        Integer u = Utils.readConfigInt(cfg, "upstream_sockets", mUpstreamSockets, 1, 1024);
+        if (u == null) {
+            return false;
+        }
+        mUpstreamSockets = u;
+
+        Integer c = Utils.readConfigInt(cfg, "cache_size", mCacheSize, 0, 1 << 22);
+        if (c == null) {
+            return false;
+        }
+        mCacheSize = c;
+
+        c = Utils.readConfigInt(cfg, "negative_cache_size", mNegativeCacheSize, 0, 1 << 22);
+        if (c == null) {
+            return false;
+        }
+        mNegativeCacheSize = c;
+
+        c = Utils.readConfigInt(cfg, "negative_cache_max_ttl", mNegativeCacheMaxTtl, 0, 24 * 60 * 60);
+        if (c == null) {
+            return false;
+        }
+        mNegativeCacheMaxTtl = c;
+
+        c = Utils.readConfigInt(cfg, "max_connections", mMaxConnections, 0, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mMaxConnections = c;
+
+        c = Utils.readConfigInt(cfg, "hedge_budget", mHedgeBudget, 0, 100);
+        if (c == null) {
+            return false;
+        }
+        mHedgeBudget = c;
+
+        c = Utils.readConfigInt(cfg, "hedge_min_delay", mHedgeMinDelay, 0, 60 * 1000);
+        if (c == null) {
+            return false;
+        }
+        mHedgeMinDelay = c;
+
+        c = Utils.readConfigInt(cfg, "tcp_connections", mTcpConnections, 0, 16);
+        if (c == null) {
+            return false;
+        }
+        mTcpConnections = c;
+
+        c = Utils.readConfigInt(cfg, "connections_per_ip", mConnectionsPerIp, 0, 1 << 16);
+        if (c == null) {
+            return false;
+        }
+        mConnectionsPerIp = c;
+
+        c = Utils.readConfigInt(cfg, "queries_per_ip", mQueriesPerIp, 0, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mQueriesPerIp = c;
+
+        c = Utils.readConfigInt(cfg, "query_burst_per_ip", mQueryBurstPerIp, 0, 1 << 20);
+        if (c == null) {
+            return false;
+        }
+        mQueryBurstPerIp = c;
+
         return true;
     }
 
@@ -89,8 +279,21 @@ public class Server implements Application {
                     if (key.isAcceptable()) {  // 新的连接
                         ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
                         SocketChannel sc = ssc.accept();
-                        // TODO:检查该socket对应的地址是不是对应了太多连接
-                        mThreadPool.execute(new ServerWorker(sc, mDnsProvider));
+                        if (sc != null) {
+                            InetAddress address = sc.socket().getInetAddress();
+                            if (!mSourceLimiter.tryConnect(address)) {
+                                Utils.showVerbose("Too many connections from " + address + ", reject");
+                                try {
+                                    sc.close();
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                }
+                            } else if (mLoops == null) {
+                                executeWorker(sc);
+                            } else {
+                                mHandshakePool.execute(new HandshakeTask(sc));
+                            }
+                        }
                     }
                     iter.remove(); //处理完事件的要从keys中删去
                 }
@@ -98,7 +301,29 @@ public class Server implements Application {
                 e.printStackTrace();
             }
         }
-        mThreadPool.shutdownNow();
+        if (mLoops == null) {
+            mThreadPool.shutdownNow();
+        } else {
+            mHandshakePool.shutdownNow();
+            for (EventLoop eventLoop : mLoops) {
+                eventLoop.shutdown();
+            }
+            for (EventLoop eventLoop : mLoops) {
+                try {
+                    eventLoop.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        mUpstreamPool.stop();
+
+        System.out.println(mUpstreamPool);
+        System.out.println(mUpstreamPool.getUpstreamStats());
+        System.out.println(mSourceLimiter);
+        if (mAnswerCache != null) {
+            System.out.println(mAnswerCache);
+        }
+        System.out.println(PacketPool.getShared());
     }
 
     private boolean listenClient() {
@@ -140,18 +365,129 @@ public class Server implements Application {
         if (!parseArgs(args)) {
             return false;
         }
+        if (!readConfig(config)) {
+            return false;
+        }
 
-        System.out.println(String.format("Server listen on %d, using dns %s", mServerPort, mDnsProvider.getHostAddress()));
+        System.out.println(String.format("Server listen on %d, using dns %s", mServerPort, describeUpstreams(mDnsProviders)));
 
         if (!listenClient()) {
             return false;
         }
 
+        try {
+            mUpstreamPool = new UpstreamPool(mDnsProviders, mUpstreamSockets);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeListen();
+            return false;
+        }
+        if (mCacheSize > 0 || mNegativeCacheSize > 0) {
+            mAnswerCache = new AnswerCache(mCacheSize, mNegativeCacheSize, mNegativeCacheMaxTtl);
+            mUpstreamPool.setAnswerCache(mAnswerCache);
+        }
+        if (mHedgeBudget > 0) {
+            mUpstreamPool.setHedging(mHedgeBudget, mHedgeMinDelay);
+        }
+        if (mTcpConnections > 0) {
+            mUpstreamPool.enableTcp(mTcpConnections);
+        }
+
+        mSourceLimiter = new SourceLimiter(mConnectionsPerIp, mQueriesPerIp,
+                mQueryBurstPerIp == 0 ? Math.max(1, mQueriesPerIp * 2) : mQueryBurstPerIp);
+
+        if (WORKERS_LOOP.equals(mWorkers)) {
+            if (!createLoops()) {
+                mUpstreamPool.stop();
+                closeListen();
+                return false;
+            }
+        } else {
+            if (WORKERS_VIRTUAL.equals(mWorkers) && !Threads.enableVirtual()) {
+                System.out.println("Virtual threads require Java 21 or later");
+                mUpstreamPool.stop();
+                closeListen();
+                return false;
+            }
+            if (mMaxConnections == 0) {
+                mMaxConnections = Threads.isVirtual() ? 10000 : 50;
+            }
+            mConnectionLimit = new Semaphore(mMaxConnections);
+            mThreadPool = Threads.newExecutor();
+            System.out.println(String.format("Running %s workers, at most %d connection(s)",
+                    mWorkers, mMaxConnections));
+        }
+
+        return true;
+    }
+
+    /**
+     * 为连接启动一个 ServerWorker，连接数已满时直接关闭新的连接，而不是让它排队等待握手
+     */
+    private void executeWorker(final SocketChannel channel) {
+        final InetAddress address = channel.socket().getInetAddress();
+        if (!mConnectionLimit.tryAcquire()) {
+            Utils.showVerbose("Too many connections, reject " + address);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSourceLimiter.disconnect(address);
+            return;
+        }
+        mThreadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ServerWorker(channel, mUpstreamPool, mSourceLimiter).run();
+                } finally {
+                    mConnectionLimit.release();
+                    mSourceLimiter.disconnect(address);
+                }
+            }
+        });
+    }
+
+    private boolean createLoops() {
+        int count = mLoopCount == 0 ? Runtime.getRuntime().availableProcessors() : mLoopCount;
+        mLoops = new EventLoop[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                mLoops[i] = new EventLoop(i, mUpstreamPool, mSourceLimiter);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mLoops = null;
+            return false;
+        }
+        mHandshakePool = Executors.newFixedThreadPool(mHandshakeThreads);
+
+        System.out.println(String.format("Running %d event loop(s)", count));
         return true;
     }
 
+    /**
+     * 选择隧道最少的事件循环
+     */
+    private EventLoop selectLoop() {
+        EventLoop selected = mLoops[0];
+        for (EventLoop eventLoop : mLoops) {
+            if (eventLoop.getTunnelCount() < selected.getTunnelCount()) {
+                selected = eventLoop;
+            }
+        }
+        return selected;
+    }
+
     @Override
     public boolean start() {
+        mUpstreamPool.start();
+        if (mLoops != null) {
+            for (EventLoop eventLoop : mLoops) {
+                eventLoop.start();
+            }
+        }
         mThread = new ServerThread();
         mThread.start();
 
@@ -195,4 +531,53 @@ public class Server implements Application {
             loop();
         }
     }
+
+    /**
+     * 以阻塞方式完成加密握手，成功后把连接切换为非阻塞模式交给事件循环。
+     * 握手超过期限的连接被关闭，避免半开或很慢的连接一直占用握手线程
+     */
+    private class HandshakeTask implements Runnable {
+        private final SocketChannel mChannel;
+        private final InetAddress mAddress;
+
+        public HandshakeTask(SocketChannel channel) {
+            mChannel = channel;
+            mAddress = channel.socket().getInetAddress();
+        }
+
+        @Override
+        public void run() {
+            boolean registered = false;
+            TimerWheel.Timeout deadline = scheduleHandshakeDeadline(mChannel);
+            try {
+                Socket socket = mChannel.socket();
+
+                SecureRandom rnd = new SecureRandom();
+                DH dh = new DH(256, rnd);
+                dh.generateKeyPair();
+                ServerHandshakeMachine handshakeMachine =
+                        new ServerHandshakeMachine(socket.getInputStream(), socket.getOutputStream(), dh);
+                if (!handshakeMachine.start() || !deadline.cancel()) {
+                    return;
+                }
+                Utils.showVerbose("ServerWorker handshake success!");
+
+                mChannel.configureBlocking(false);
+                selectLoop().register(mChannel, handshakeMachine.getKey(), handshakeMachine.getIV());
+                registered = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (!registered) {
+                    deadline.cancel();
+                    try {
+                        mChannel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    mSourceLimiter.disconnect(mAddress);
+                }
+            }
+        }
+    }
 }
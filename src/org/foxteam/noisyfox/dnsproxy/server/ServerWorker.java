@@ -1,5 +1,7 @@
 package org.foxteam.noisyfox.dnsproxy.server;
 
+import org.foxteam.noisyfox.dnsproxy.Threads;
+import org.foxteam.noisyfox.dnsproxy.TimerWheel;
 import org.foxteam.noisyfox.dnsproxy.Utils;
 import org.foxteam.noisyfox.dnsproxy.crypto.DH;
 import org.foxteam.noisyfox.dnsproxy.dns.UDPDataFrame;
@@ -21,12 +23,16 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ServerWorker implements Runnable {
     private final SocketChannel mClientChannel;
     private final Socket mClientSocket;
-    private final InetAddress mDNSAddress;
+    private final UpstreamPool mUpstreamPool;
+    private final SourceLimiter mSourceLimiter;
+    private final InetAddress mClientAddress;
 
-    public ServerWorker(SocketChannel clientChannel, InetAddress dnsAddress) {
-        mDNSAddress = dnsAddress;
+    public ServerWorker(SocketChannel clientChannel, UpstreamPool upstreamPool, SourceLimiter sourceLimiter) {
+        mUpstreamPool = upstreamPool;
+        mSourceLimiter = sourceLimiter;
         mClientChannel = clientChannel;
         mClientSocket = clientChannel.socket();
+        mClientAddress = mClientSocket.getInetAddress();
     }
 
     @Override
@@ -57,7 +63,8 @@ public class ServerWorker implements Runnable {
             return;
         }
 
-        // 首先，协商加密
+        // 首先，协商加密，握手设有期限，避免半开的连接一直占用工作线程
+        TimerWheel.Timeout deadline = Server.scheduleHandshakeDeadline(mClientChannel);
         // 创建dh密钥对
         SecureRandom rnd = new SecureRandom();
         DH dh = new DH(256, rnd);
@@ -67,8 +74,8 @@ public class ServerWorker implements Runnable {
         dh = null;// 丢弃
         boolean handshakeSuccess = handshakeMachine.start();
 
-        if (!handshakeSuccess) {
-            return;
+        if (!deadline.cancel() || !handshakeSuccess) {
+            return; // 期限已到时连接已被关闭
         }
 
         Utils.showVerbose("ServerWorker handshake success!");
@@ -83,13 +90,13 @@ public class ServerWorker implements Runnable {
 
         mTreadLock.lock();
         try {
-            flinger = new RespondFlinger(mDNSAddress);
+            flinger = new RespondFlinger(mUpstreamPool);
             flinger.start();
 
             // 启动请求和响应线程，本线程成为监控线程，如果请求或响应线程出错，
             // 则负责结束整个ServerWorker
-            requestThread = new RequestThread(flinger, inputStream);
-            respondThread = new RespondThread(flinger, outputStream);
+            requestThread = Threads.newThread(new RequestThread(flinger, inputStream));
+            respondThread = Threads.newThread(new RespondThread(flinger, outputStream));
 
             requestThread.start();
             respondThread.start();
@@ -129,7 +136,7 @@ public class ServerWorker implements Runnable {
     /**
      * 接收从客户端发来的请求并提交给flinger去处理
      */
-    private class RequestThread extends Thread {
+    private class RequestThread implements Runnable {
         private final RespondFlinger mFlinger;
         private final InputStream mIn;
 
@@ -155,7 +162,7 @@ public class ServerWorker implements Runnable {
 
         private void doJob() {
             UDPDataFrame frame = new UDPDataFrame();
-            while (!interrupted()) {
+            while (!Thread.interrupted()) {
                 try {
                     int count = frame.readFromStream(mIn);
                     if (count == -1) {
@@ -168,12 +175,16 @@ public class ServerWorker implements Runnable {
                     return;
                 }
 
-                if (interrupted()) {
+                if (Thread.interrupted()) {
                     return;
                 }
 
                 Utils.showVerbose("Client request! Port:" + frame.getPort());
 
+                if (!mSourceLimiter.tryQuery(mClientAddress)) {
+                    Utils.showVerbose("Query rate limited, drop request from " + mClientAddress);
+                    continue;
+                }
                 mFlinger.queueRequestAndNotify(frame);
             }
         }
@@ -182,7 +193,7 @@ public class ServerWorker implements Runnable {
     /**
      * 接收flinger发来的请求结果并返回给客户端
      */
-    private class RespondThread extends Thread {
+    private class RespondThread implements Runnable {
         private final RespondFlinger mFlinger;
         private final OutputStream mOut;
 
@@ -208,7 +219,7 @@ public class ServerWorker implements Runnable {
 
         private void doJob() {
             UDPDataFrame frame = new UDPDataFrame();
-            while (!interrupted()) {
+            while (!Thread.interrupted()) {
                 try {
                     mFlinger.pollRespondOrWait(frame);
                 } catch (InterruptedException e) {
@@ -0,0 +1,315 @@
+package org.foxteam.noisyfox.dnsproxy.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/25.
+ * 按来源地址限制连接数和请求速率，IPv6地址按 /64 前缀合并计算
+ * <p/>
+ * 每个来源一个令牌桶，与 TokenBucket 的算法相同，但所有来源的状态放在按地址分段加锁的开放寻址表中，
+ * 每个来源只占几个基本类型数组的一格，不为每个来源创建对象。
+ * 没有连接、令牌已经补满并且空闲超过 mExpireNanos 的项视为过期，插入时直接复用，表扩容前先清掉过期项
+ */
+public class SourceLimiter {
+    private static final int STRIPE_COUNT = 64;
+    private static final int INITIAL_CAPACITY = 64; // 每段的初始容量，必须是2的幂
+    private static final int MAX_CAPACITY = 1 << 16; // 每段的最大容量，表满时不再限制新的来源
+    private static final long MIN_EXPIRE = 60L * 1000000000L;
+
+    private final int mMaxConnections; // 0 表示不限制
+    private final double mRatePerNano; // 0 表示不限制
+    private final float mBurst;
+    private final long mExpireNanos;
+    private final Stripe mStripes[] = new Stripe[STRIPE_COUNT];
+
+    private final AtomicLong mRejectedConnections = new AtomicLong(0L);
+    private final AtomicLong mLimitedQueries = new AtomicLong(0L);
+
+    /**
+     * @param maxConnections 每个来源的最大连接数，0表示不限制
+     * @param queriesPerSecond 每个来源每秒允许的请求数，0表示不限制
+     * @param burst 每个来源的令牌桶容量
+     */
+    public SourceLimiter(int maxConnections, double queriesPerSecond, int burst) {
+        if (maxConnections < 0 || queriesPerSecond < 0 || queriesPerSecond > 0 && burst <= 0) {
+            throw new IllegalArgumentException("Illegal connections " + maxConnections
+                    + ", rate " + queriesPerSecond + " or burst " + burst);
+        }
+        mMaxConnections = maxConnections;
+        mRatePerNano = queriesPerSecond / 1000000000.0;
+        mBurst = burst;
+        // 过期前令牌必须已经补满，否则丢掉的项会让来源多得到令牌
+        long refill = queriesPerSecond > 0 ? (long) (burst / mRatePerNano) : 0L;
+        mExpireNanos = Math.max(MIN_EXPIRE, refill);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * 接受连接前调用，连接关闭后必须调用 disconnect
+     *
+     * @return 来源的连接数已达上限时返回false
+     */
+    public boolean tryConnect(InetAddress address) {
+        if (mMaxConnections == 0) {
+            return true;
+        }
+        long key = keyOf(address);
+        Stripe stripe = stripeOf(key);
+        stripe.mLock.lock();
+        try {
+            long now = System.nanoTime();
+            int slot = stripe.find(key, now);
+            if (slot < 0) {
+                return true;
+            }
+            stripe.touch(slot, now);
+            if (stripe.mConnections[slot] >= mMaxConnections) {
+                mRejectedConnections.incrementAndGet();
+                return false;
+            }
+            stripe.mConnections[slot]++;
+            return true;
+        } finally {
+            stripe.mLock.unlock();
+        }
+    }
+
+    public void disconnect(InetAddress address) {
+        if (mMaxConnections == 0) {
+            return;
+        }
+        long key = keyOf(address);
+        Stripe stripe = stripeOf(key);
+        stripe.mLock.lock();
+        try {
+            long now = System.nanoTime();
+            int slot = stripe.find(key, now);
+            if (slot >= 0 && stripe.mConnections[slot] > 0) {
+                stripe.touch(slot, now);
+                stripe.mConnections[slot]--;
+            }
+        } finally {
+            stripe.mLock.unlock();
+        }
+    }
+
+    /**
+     * 取走来源的一个请求令牌
+     *
+     * @return 超过速率限制时返回false
+     */
+    public boolean tryQuery(InetAddress address) {
+        if (mRatePerNano == 0) {
+            return true;
+        }
+        long key = keyOf(address);
+        Stripe stripe = stripeOf(key);
+        stripe.mLock.lock();
+        try {
+            long now = System.nanoTime();
+            int slot = stripe.find(key, now);
+            if (slot < 0) {
+                return true;
+            }
+            stripe.touch(slot, now);
+            if (stripe.mTokens[slot] < 1.0f) {
+                mLimitedQueries.incrementAndGet();
+                return false;
+            }
+            stripe.mTokens[slot] -= 1.0f;
+            return true;
+        } finally {
+            stripe.mLock.unlock();
+        }
+    }
+
+    /**
+     * IPv4地址直接作为键，IPv6地址取前64位。IPv4的键落在 ::ffff:0:0/96 对应的前缀中，不会与公网IPv6前缀冲突
+     */
+    private static long keyOf(InetAddress address) {
+        byte bytes[] = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return 0x0000FFFF00000000L | ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16)
+                    | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+        }
+        long key = 0L;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (bytes[i] & 0xFFL);
+        }
+        return key;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Stripe stripeOf(long key) {
+        return mStripes[(hash(key) >>> 26) & (STRIPE_COUNT - 1)];
+    }
+
+    public int getTrackedCount() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Stripe stripe : mStripes) {
+            stripe.mLock.lock();
+            try {
+                for (int i = 0; i < stripe.mUsed.length; i++) {
+                    if (stripe.mUsed[i] && !stripe.isExpired(i, now)) {
+                        count++;
+                    }
+                }
+            } finally {
+                stripe.mLock.unlock();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SourceLimiter tracked %d, rejected connections %d, limited queries %d",
+                getTrackedCount(), mRejectedConnections.get(), mLimitedQueries.get());
+    }
+
+    /**
+     * 开放寻址表的一段，线性探测，所有数组只在持有 mLock 时访问
+     */
+    private class Stripe {
+        private final ReentrantLock mLock = new ReentrantLock();
+        private boolean mUsed[] = new boolean[INITIAL_CAPACITY];
+        private long mKeys[] = new long[INITIAL_CAPACITY];
+        private int mConnections[] = new int[INITIAL_CAPACITY];
+        private float mTokens[] = new float[INITIAL_CAPACITY];
+        private long mLastSeen[] = new long[INITIAL_CAPACITY];
+        private int mSize = 0; // 已使用的格数，包括过期项
+
+        private boolean isExpired(int slot, long now) {
+            return mConnections[slot] == 0 && now - mLastSeen[slot] > mExpireNanos;
+        }
+
+        /**
+         * 找到来源对应的格，不存在时新建
+         *
+         * @return 表已满时返回-1
+         */
+        private int find(long key, long now) {
+            int slot = lookup(key, now);
+            if (slot >= 0) {
+                if (isExpired(slot, now)) {
+                    reset(slot, key, now);
+                }
+                return slot;
+            }
+            slot = -slot - 1;
+            if (!mUsed[slot]) {
+                if ((mSize + 1) * 4 > mUsed.length * 3) {
+                    if (!rehash(now)) {
+                        return -1;
+                    }
+                    // 表已达最大容量时 rehash 不清理过期项，这时找到的可能是仍标记为已使用的过期项
+                    slot = -lookup(key, now) - 1;
+                }
+                if (!mUsed[slot]) {
+                    mUsed[slot] = true;
+                    mSize++;
+                }
+            }
+            reset(slot, key, now);
+            return slot;
+        }
+
+        /**
+         * @return 找到时返回格的序号；否则返回 -(可插入的格 + 1)，优先复用探测途中遇到的第一个过期项
+         */
+        private int lookup(long key, long now) {
+            int mask = mUsed.length - 1;
+            int reusable = -1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (!mUsed[i]) {
+                    return -(reusable >= 0 ? reusable : i) - 1;
+                }
+                if (mKeys[i] == key) {
+                    return i;
+                }
+                if (reusable < 0 && isExpired(i, now)) {
+                    reusable = i;
+                }
+            }
+        }
+
+        /**
+         * 按经过的时间补充令牌并记录活动时间，连接和请求都算作来源的活动
+         */
+        private void touch(int slot, long now) {
+            mTokens[slot] = (float) Math.min(mBurst, mTokens[slot] + (now - mLastSeen[slot]) * mRatePerNano);
+            mLastSeen[slot] = now;
+        }
+
+        private void reset(int slot, long key, long now) {
+            mKeys[slot] = key;
+            mConnections[slot] = 0;
+            mTokens[slot] = mBurst;
+            mLastSeen[slot] = now;
+        }
+
+        /**
+         * 丢掉过期项，剩余项仍超过一半容量时扩大一倍
+         *
+         * @return 已达最大容量并且没有空位时返回false
+         */
+        private boolean rehash(long now) {
+            boolean oldUsed[] = mUsed;
+            long oldKeys[] = mKeys;
+            int oldConnections[] = mConnections;
+            float oldTokens[] = mTokens;
+            long oldLastSeen[] = mLastSeen;
+
+            int live = 0;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i] && !isExpired(i, now)) {
+                    live++;
+                }
+            }
+            int capacity = oldUsed.length;
+            if (live * 2 > capacity && capacity < MAX_CAPACITY) {
+                capacity *= 2;
+            }
+            if (live * 4 > capacity * 3) {
+                // 已达最大容量，保留至少一个空位让探测能够结束
+                return mSize + 1 < capacity;
+            }
+
+            mUsed = new boolean[capacity];
+            mKeys = new long[capacity];
+            mConnections = new int[capacity];
+            mTokens = new float[capacity];
+            mLastSeen = new long[capacity];
+            mSize = 0;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (!oldUsed[i] || oldConnections[i] == 0 && now - oldLastSeen[i] > mExpireNanos) {
+                    continue;
+                }
+                int slot = hash(oldKeys[i]) & mask;
+                while (mUsed[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                mUsed[slot] = true;
+                mKeys[slot] = oldKeys[i];
+                mConnections[slot] = oldConnections[i];
+                mTokens[slot] = oldTokens[i];
+                mLastSeen[slot] = oldLastSeen[i];
+                mSize++;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package org.foxteam.noisyfox.dnsproxy.server;
+
+import org.foxteam.noisyfox.dnsproxy.TimerWheel;
+import org.foxteam.noisyfox.dnsproxy.Utils;
+import org.foxteam.noisyfox.dnsproxy.dns.AnswerCache;
+import org.foxteam.noisyfox.dnsproxy.dns.DNSPacket;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by Noisyfox on 2015/3/24.
+ * 到上游的 DNS over TCP 长连接池 (RFC 7766)，用于重新查询UDP响应被截断 (TC=1) 的请求
+ * <p/>
+ * 每个上游最多保持 connectionsPerUpstream 条连接，请求轮流分配到各条连接上。
+ * 同一条连接上的请求连续发出，不等待前一个请求的响应，响应按事务ID找回请求，不要求按发送顺序到达。
+ * 连接的建立和写入都在连接自己的写线程中进行，调用者不会被阻塞
+ * <p/>
+ * 连接断开时尚未响应的请求在新连接上重试一次。仍然失败、超时或响应无法放入隧道的请求，
+ * 以原来被截断的UDP响应答复
+ * <p/>
+ * 请求超时和连接空闲都由共用的 TimerWheel 计时，读取线程只在有数据或连接关闭时醒来
+ */
+public class TcpUpstreamPool {
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final long QUERY_TIMEOUT = 5000L;
+    private static final long IDLE_TIMEOUT = 30000L; // 空闲超过该时间的连接主动关闭
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int MAX_ANSWER_SIZE = 0xFFFF - 16 - 4; // 响应需要放进一个 AES 帧
+
+    private final TimerWheel mTimerWheel = TimerWheel.getShared();
+    private final int mConnectionsPerUpstream;
+    private final AnswerCache mAnswerCache;
+    private final ConcurrentHashMap<InetSocketAddress, Connection[]> mConnections =
+            new ConcurrentHashMap<InetSocketAddress, Connection[]>();
+    private final ReentrantLock mLock = new ReentrantLock(); // 保护连接的创建和替换
+    private final AtomicInteger mNextSlot = new AtomicInteger(0);
+    private volatile boolean mStopped = false;
+
+    private final AtomicLong mSendCount = new AtomicLong(0L);
+    private final AtomicLong mAnswerCount = new AtomicLong(0L);
+    private final AtomicLong mRetryCount = new AtomicLong(0L);
+    private final AtomicLong mFallbackCount = new AtomicLong(0L);
+    private final AtomicLong mConnectCount = new AtomicLong(0L);
+
+    /**
+     * @param answerCache 所有请求者共用的应答缓存，可以为null
+     */
+    public TcpUpstreamPool(int connectionsPerUpstream, AnswerCache answerCache) {
+        mConnectionsPerUpstream = connectionsPerUpstream;
+        mAnswerCache = answerCache;
+    }
+
+    public void stop() {
+        mStopped = true;
+        List<Connection> connections = new ArrayList<Connection>();
+        mLock.lock();
+        try {
+            for (Connection slots[] : mConnections.values()) {
+                for (Connection connection : slots) {
+                    if (connection != null) {
+                        connections.add(connection);
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        for (Connection connection : connections) {
+            connection.close(null);
+        }
+    }
+
+    /**
+     * 通过TCP重新查询一个请求，可以在任意线程调用。
+     * 响应在连接的读取线程中交给 callback，超时的请求在 TimerWheel 的线程中以被截断的响应答复
+     *
+     * @param query         请求内容，只读取事务ID之后的部分，调用后不能再修改这部分
+     * @param questionEnd   请求中问题部分的结束位置
+     * @param transactionId 请求者原来的事务ID
+     * @param truncated     被截断的UDP响应，事务ID已恢复为 transactionId，查询失败时用它答复
+     */
+    public void send(InetSocketAddress upstream, byte query[], int questionEnd, int transactionId,
+                     byte truncated[], int port, UpstreamPool.Callback callback) {
+        mSendCount.incrementAndGet();
+        dispatch(new TcpQuery(upstream, query, questionEnd, transactionId, truncated, port, callback));
+    }
+
+    private void dispatch(TcpQuery query) {
+        query.mAttempts++;
+        Connection slots[] = mConnections.get(query.mUpstream);
+        if (slots == null) {
+            Connection newSlots[] = new Connection[mConnectionsPerUpstream];
+            slots = mConnections.putIfAbsent(query.mUpstream, newSlots);
+            if (slots == null) {
+                slots = newSlots;
+            }
+        }
+        int slot = (mNextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length;
+
+        mLock.lock();
+        try {
+            if (mStopped) {
+                return;
+            }
+            Connection connection = slots[slot];
+            if (connection != null && connection.enqueue(query)) {
+                return;
+            }
+            connection = new Connection(query.mUpstream);
+            slots[slot] = connection;
+            mConnectCount.incrementAndGet();
+            connection.enqueue(query);
+            connection.start();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 连接断开时尚未响应的请求，未超过重试次数的在新连接上重试
+     */
+    private void onConnectionLost(TcpQuery query) {
+        if (mStopped) {
+            return;
+        }
+        if (query.mAttempts < MAX_ATTEMPTS) {
+            mRetryCount.incrementAndGet();
+            dispatch(query);
+        } else {
+            fallback(query);
+        }
+    }
+
+    private void fallback(TcpQuery query) {
+        if (mStopped) {
+            return;
+        }
+        mFallbackCount.incrementAndGet();
+        query.mCallback.onRespond(query.mPort, query.mTruncated, 0, query.mTruncated.length);
+    }
+
+    private void onAnswer(TcpQuery query, byte data[], int offset, int length) {
+        if (length > MAX_ANSWER_SIZE || DNSPacket.isTruncated(data, offset)) {
+            fallback(query);
+            return;
+        }
+        mAnswerCount.incrementAndGet();
+        DNSPacket.setTransactionId(data, offset, query.mTransactionId);
+        if (mAnswerCache != null
+                && DNSPacket.isSameQuestion(query.mQuery, 0, query.mQuery.length, data, offset, length)) {
+            mAnswerCache.put(data, offset, length);
+        }
+        // 请求者通过UDP接收应答，超过它能接收的长度时返回截断的应答，由请求者自己改用TCP
+        if (length > DNSPacket.getUdpPayloadSize(query.mQuery, 0, query.mQuery.length)) {
+            fallback(query);
+            return;
+        }
+        query.mCallback.onRespond(query.mPort, data, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TCP upstream sent %d, answered %d, retried %d, fell back %d, connected %d time(s)",
+                mSendCount.get(), mAnswerCount.get(), mRetryCount.get(), mFallbackCount.get(),
+                mConnectCount.get());
+    }
+
+    /**
+     * 超时时从所在的连接中移除并以被截断的响应答复
+     */
+    private class TcpQuery implements Runnable {
+        private final InetSocketAddress mUpstream;
+        private final byte mQuery[];
+        private final int mQuestionEnd;
+        private final int mTransactionId;
+        private final byte mTruncated[];
+        private final int mPort;
+        private final UpstreamPool.Callback mCallback;
+
+        private int mAttempts = 0;
+        // 由当前所在的连接设置
+        private Connection mConnection;
+        private int mId;
+        private TimerWheel.Timeout mTimer;
+
+        private TcpQuery(InetSocketAddress upstream, byte query[], int questionEnd, int transactionId,
+                         byte truncated[], int port, UpstreamPool.Callback callback) {
+            mUpstream = upstream;
+            mQuery = query;
+            mQuestionEnd = questionEnd;
+            mTransactionId = transactionId;
+            mTruncated = truncated;
+            mPort = port;
+            mCallback = callback;
+        }
+
+        /**
+         * 在 TimerWheel 的线程中调用
+         */
+        @Override
+        public void run() {
+            mConnection.expire(this);
+        }
+
+        private boolean questionMatches(byte data[], int offset, int length) {
+            if (length < mQuestionEnd) {
+                return false;
+            }
+            for (int i = DNSPacket.HEADER_SIZE; i < mQuestionEnd; i++) {
+                if (data[offset + i] != mQuery[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 一条到上游的TCP连接，消息格式为2字节长度加DNS报文。连接上的事务ID按顺序分配
+     */
+    private class Connection {
+        private final InetSocketAddress mAddress;
+        private final Socket mSocket = new Socket();
+        private final ReentrantLock mConnectionLock = new ReentrantLock();
+        private final Condition mOutgoingCondition = mConnectionLock.newCondition();
+        private final LinkedList<TcpQuery> mOutgoing = new LinkedList<TcpQuery>();
+        private final HashMap<Integer, TcpQuery> mInFlight = new HashMap<Integer, TcpQuery>();
+        private boolean mClosed = false;
+        private int mNextId = 0;
+        private TimerWheel.Timeout mIdleTimer = null;
+        private final Runnable mIdleTask = new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        };
+
+        private Connection(InetSocketAddress address) {
+            mAddress = address;
+        }
+
+        private void start() {
+            Thread writer = new WriterThread();
+            writer.setName("TcpUpstream-" + mAddress.getAddress().getHostAddress() + "-writer");
+            writer.start();
+        }
+
+        /**
+         * @return 连接已关闭时返回false
+         */
+        private boolean enqueue(TcpQuery query) {
+            mConnectionLock.lock();
+            try {
+                if (mClosed || mInFlight.size() >= 0x10000) {
+                    return false;
+                }
+                int id;
+                do {
+                    id = mNextId;
+                    mNextId = (mNextId + 1) & 0xFFFF;
+                } while (mInFlight.containsKey(id));
+                query.mConnection = this;
+                query.mId = id;
+                query.mTimer = mTimerWheel.schedule(query, QUERY_TIMEOUT);
+                mInFlight.put(id, query);
+                if (mIdleTimer != null) {
+                    mIdleTimer.cancel();
+                    mIdleTimer = null;
+                }
+                mOutgoing.offer(query);
+                mOutgoingCondition.signalAll();
+                return true;
+            } finally {
+                mConnectionLock.unlock();
+            }
+        }
+
+        /**
+         * 关闭连接，尚未响应的请求交给连接池重试
+         *
+         * @param e 导致关闭的异常，主动关闭时为null
+         */
+        private void close(IOException e) {
+            List<TcpQuery> lost;
+            boolean wasClosed;
+            mConnectionLock.lock();
+            try {
+                wasClosed = mClosed;
+                mClosed = true;
+                lost = new ArrayList<TcpQuery>(mInFlight.values());
+                for (TcpQuery query : lost) {
+                    query.mTimer.cancel();
+                }
+                mInFlight.clear();
+                if (mIdleTimer != null) {
+                    mIdleTimer.cancel();
+                    mIdleTimer = null;
+                }
+                mOutgoing.clear();
+                mOutgoingCondition.signalAll();
+            } finally {
+                mConnectionLock.unlock();
+            }
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+            if (e != null && !wasClosed) { // 主动关闭后读写线程抛出的异常不需要显示
+                Utils.showVerbose("TCP upstream connection to " + mAddress + " closed: " + e);
+            }
+            for (TcpQuery query : lost) {
+                onConnectionLost(query);
+            }
+        }
+
+        /**
+         * 没有请求等待响应时开始计算空闲时间，必须持有 mConnectionLock
+         */
+        private void armIdleTimer() {
+            if (mInFlight.isEmpty() && !mClosed && mIdleTimer == null) {
+                mIdleTimer = mTimerWheel.schedule(mIdleTask, IDLE_TIMEOUT);
+            }
+        }
+
+        private void closeIfIdle() {
+            mConnectionLock.lock();
+            try {
+                if (mClosed || !mInFlight.isEmpty()) {
+                    return;
+                }
+                mIdleTimer = null;
+            } finally {
+                mConnectionLock.unlock();
+            }
+            close(null);
+        }
+
+        /**
+         * 请求超时，在 TimerWheel 的线程中调用
+         */
+        private void expire(TcpQuery query) {
+            mConnectionLock.lock();
+            try {
+                if (mInFlight.get(query.mId) != query) {
+                    return;
+                }
+                mInFlight.remove(query.mId);
+                armIdleTimer();
+            } finally {
+                mConnectionLock.unlock();
+            }
+            fallback(query);
+        }
+
+        private void receive(byte data[], int offset, int length) {
+            if (length < DNSPacket.HEADER_SIZE) {
+                return;
+            }
+            TcpQuery query;
+            mConnectionLock.lock();
+            try {
+                int id = DNSPacket.getTransactionId(data, offset);
+                query = mInFlight.get(id);
+                if (query == null || !query.questionMatches(data, offset, length)) {
+                    return;
+                }
+                mInFlight.remove(id);
+                query.mTimer.cancel();
+                armIdleTimer();
+            } finally {
+                mConnectionLock.unlock();
+            }
+            onAnswer(query, data, offset, length);
+        }
+
+        /**
+         * 建立连接后把请求连续写入连接，队列中的请求一次写完后再 flush
+         */
+        private class WriterThread extends Thread {
+            @Override
+            public void run() {
+                OutputStream out;
+                try {
+                    mSocket.connect(mAddress, CONNECT_TIMEOUT);
+                    mSocket.setTcpNoDelay(true);
+                    out = new BufferedOutputStream(mSocket.getOutputStream());
+                } catch (IOException e) {
+                    close(e);
+                    return;
+                }
+
+                Thread reader = new ReaderThread();
+                reader.setName("TcpUpstream-" + mAddress.getAddress().getHostAddress() + "-reader");
+                reader.start();
+
+                List<TcpQuery> batch = new ArrayList<TcpQuery>();
+                while (true) {
+                    mConnectionLock.lock();
+                    try {
+                        while (mOutgoing.isEmpty() && !mClosed) {
+                            mOutgoingCondition.awaitUninterruptibly();
+                        }
+                        if (mClosed) {
+                            return;
+                        }
+                        batch.addAll(mOutgoing);
+                        mOutgoing.clear();
+                    } finally {
+                        mConnectionLock.unlock();
+                    }
+
+                    try {
+                        for (TcpQuery tcpQuery : batch) {
+                            byte query[] = tcpQuery.mQuery;
+                            int id = tcpQuery.mId;
+                            out.write((query.length >> 8) & 0xFF);
+                            out.write(query.length & 0xFF);
+                            out.write((id >> 8) & 0xFF);
+                            out.write(id & 0xFF);
+                            out.write(query, 2, query.length - 2);
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        close(e);
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * 读取响应，按2字节长度拆分消息
+         */
+        private class ReaderThread extends Thread {
+            @Override
+            public void run() {
+                byte buffer[] = new byte[2 + 0xFFFF];
+                int have = 0;
+                int need = 2;
+                InputStream in;
+                try {
+                    in = mSocket.getInputStream();
+                } catch (IOException e) {
+                    close(e);
+                    return;
+                }
+
+                while (true) {
+                    try {
+                        int count = in.read(buffer, have, need - have);
+                        if (count < 0) {
+                            close(null);
+                            return;
+                        }
+                        have += count;
+                        if (have == need) {
+                            if (need == 2) {
+                                need = 2 + (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF));
+                            }
+                            if (have == need) {
+                                receive(buffer, 2, need - 2);
+                                have = 0;
+                                need = 2;
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.foxteam.noisyfox.dnsproxy.server;
+
+import org.foxteam.noisyfox.dnsproxy.RttEstimator;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Noisyfox on 2015/3/23.
+ * 一个上游解析器及其根据实际请求统计的响应时间和丢包率
+ * <p/>
+ * 响应时间和丢包率都取指数加权移动平均。连续多次没有响应的上游被暂时停用，
+ * 停用期过后重新参与选择，再次没有响应时立即停用
+ * <p/>
+ * 统计只在 UpstreamPool 的接收线程中更新，其他线程只读取
+ */
+public class Upstream {
+    private static final double RTT_GAIN = 1.0 / 8; // 与 TCP 的 SRTT 相同
+    private static final double LOSS_GAIN = 1.0 / 16;
+    private static final double INITIAL_RTT = 100.0; // 没有样本时假定的响应时间，单位毫秒
+    private static final double LOSS_PENALTY = 2000.0; // 一次丢包大约让请求者多等一个超时，单位毫秒
+    private static final int MAX_FAILURES = 5;
+    private static final long DOWN_TIME = 30000L;
+
+    private final InetSocketAddress mAddress;
+    private final RttEstimator mEstimator = new RttEstimator();
+
+    private volatile double mRtt = INITIAL_RTT;
+    private volatile double mLoss = 0.0;
+    private volatile long mDownUntil = 0L;
+    private boolean mHasSample = false;
+    private int mFailures = 0;
+
+    private final AtomicLong mSendCount = new AtomicLong(0L);
+    private final AtomicLong mAnswerCount = new AtomicLong(0L);
+    private final AtomicLong mLostCount = new AtomicLong(0L);
+    private final AtomicLong mDownCount = new AtomicLong(0L);
+
+    public Upstream(InetSocketAddress address) {
+        mAddress = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * 评分越低越好：平均响应时间加上丢包带来的预期等待
+     */
+    public double getScore() {
+        return mRtt + mLoss * LOSS_PENALTY;
+    }
+
+    /**
+     * @return 响应时间的第95百分位，单位毫秒；样本不足时返回-1
+     */
+    public long getP95() {
+        return mEstimator.getP95();
+    }
+
+    public boolean isUp(long now) {
+        return now >= mDownUntil;
+    }
+
+    public void onSend() {
+        mSendCount.incrementAndGet();
+    }
+
+    /**
+     * 收到响应
+     *
+     * @param rtt  响应时间，单位毫秒
+     * @param late 该请求此前已被计为丢包
+     */
+    public void onAnswer(double rtt, boolean late) {
+        mAnswerCount.incrementAndGet();
+        mEstimator.record(Math.round(rtt));
+        if (mHasSample) {
+            mRtt += (rtt - mRtt) * RTT_GAIN;
+        } else {
+            mRtt = rtt;
+            mHasSample = true;
+        }
+        if (!late) {
+            mLoss -= mLoss * LOSS_GAIN;
+        }
+        mFailures = 0;
+    }
+
+    /**
+     * 请求在超时时间内没有收到响应
+     *
+     * @return 该上游是否因此被停用
+     */
+    public boolean onLost(long now) {
+        mLostCount.incrementAndGet();
+        mLoss += (1.0 - mLoss) * LOSS_GAIN;
+        if (++mFailures >= MAX_FAILURES) {
+            mDownUntil = now + DOWN_TIME;
+            mDownCount.incrementAndGet();
+            // 停用期过后只要再丢一次就重新停用
+            mFailures = MAX_FAILURES - 1;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d rtt %.1fms, p95 %dms, loss %.1f%%, sent %d, answered %d, lost %d, down %d time(s)%s",
+                mAddress.getAddress().getHostAddress(), mAddress.getPort(), mRtt, getP95(), mLoss * 100,
+                mSendCount.get(), mAnswerCount.get(), mLostCount.get(), mDownCount.get(),
+                isUp(System.currentTimeMillis()) ? "" : " [down]");
+    }
+}
@@ -0,0 +1,561 @@
+package org.foxteam.noisyfox.dnsproxy.server;
+
+import org.foxteam.noisyfox.dnsproxy.PacketPool;
+import org.foxteam.noisyfox.dnsproxy.TimerWheel;
+import org.foxteam.noisyfox.dnsproxy.dns.AnswerCache;
+import org.foxteam.noisyfox.dnsproxy.dns.DNSPacket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Noisyfox on 2015/3/22.
+ * 服务器共用的上游UDP通道池
+ * <p/>
+ * 所有隧道的请求都从固定数量的UDP通道发往上游，每个请求随机选择一个通道并换用一个随机的事务ID，
+ * 上游的响应按 (通道, 事务ID) 在待响应表中找回请求者，恢复原来的事务ID后交给请求者。
+ * 来源地址或问题部分与请求不一致的响应被丢弃
+ * <p/>
+ * 设置了共享缓存时，所有上游的响应都会放入缓存，请求者在发送请求前先通过 getCached 查找
+ * <p/>
+ * 可以配置多个上游解析器，每个请求发往评分最好的上游，并以一定概率随机探测其他上游以更新它们的统计。
+ * 超过 LOSS_TIMEOUT 仍未响应的请求计为该上游丢包，但在 PENDING_TIMEOUT 之前到达的响应仍会交给请求者
+ * <p/>
+ * 启用对冲后，超过上游响应时间第95百分位仍未响应的请求再发一份到另一个上游，先到的响应交给请求者。
+ * 对冲请求的数量不超过普通请求的一定比例
+ * <p/>
+ * 启用TCP后，被截断 (TC=1) 的响应不直接交给请求者，而是通过 TcpUpstreamPool 向同一上游重新查询
+ * <p/>
+ * 每个请求在共用的 TimerWheel 上挂一个定时器，依次到达对冲、丢包和清理的时间点，收到响应时取消。
+ * 定时器到期后把请求交回接收线程处理，没有请求等待时接收线程不会醒来
+ */
+public class UpstreamPool {
+
+    /**
+     * 响应的接收者
+     */
+    public interface Callback {
+        /**
+         * 在接收线程、TCP连接的读取线程或 TimerWheel 的线程中调用，返回后 data 中的内容会被覆盖
+         *
+         * @param port 发送请求时提供的请求者编号
+         */
+        void onRespond(int port, byte data[], int offset, int length);
+    }
+
+    private static final long PENDING_TIMEOUT = 10000L; // 超过该时间仍未收到响应的请求被清理
+    private static final long LOSS_TIMEOUT = 2000L;
+    private static final int EXPLORE_PERCENT = 5;
+    private static final double MAX_HEDGE_CREDIT = 10.0; // 限制空闲后突发的对冲数量
+    private static final int MAX_ID_TRIES = 8;
+    private static final int MAX_RECEIVE_BATCH = 16;
+
+    private final Upstream mUpstreams[];
+    private final DatagramChannel mChannels[];
+    private final Selector mSelector;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(PacketPool.MAX_PACKET_SIZE);
+    private final PacketPool mPacketPool = PacketPool.getShared();
+    private final TimerWheel mTimerWheel = TimerWheel.getShared();
+    private final ConcurrentLinkedQueue<Pending> mDue = new ConcurrentLinkedQueue<Pending>(); // 定时器到期的请求
+    private AnswerCache mAnswerCache = null;
+    private int mHedgeBudget = 0; // 对冲请求占普通请求的百分比上限，0表示不对冲
+    private long mHedgeMinDelay = 0L;
+    private int mTcpConnections = 0; // 每个上游的TCP连接数，0表示不用TCP重新查询
+    private TcpUpstreamPool mTcpPool = null;
+
+    // 以下只在接收线程中访问
+    private final byte mHedgeBuffer[] = new byte[PacketPool.MAX_PACKET_SIZE];
+    private double mHedgeCredit = 0.0;
+    private long mCreditedSendCount = 0L;
+
+    // 键为 通道序号 << 16 | 事务ID
+    private final ConcurrentHashMap<Integer, Pending> mPending = new ConcurrentHashMap<Integer, Pending>();
+
+    private final AtomicLong mSendCount = new AtomicLong(0L);
+    private final AtomicLong mRespondCount = new AtomicLong(0L);
+    private final AtomicLong mExpireCount = new AtomicLong(0L);
+    private final AtomicLong mMismatchCount = new AtomicLong(0L);
+    private final AtomicLong mDropCount = new AtomicLong(0L);
+    private final AtomicLong mHedgeCount = new AtomicLong(0L);
+    private final AtomicLong mHedgeWinCount = new AtomicLong(0L);
+    private final AtomicLong mTruncatedCount = new AtomicLong(0L);
+
+    private ReceiveThread mThread;
+
+    public UpstreamPool(List<InetSocketAddress> upstreams, int socketCount) throws IOException {
+        mUpstreams = new Upstream[upstreams.size()];
+        for (int i = 0; i < mUpstreams.length; i++) {
+            mUpstreams[i] = new Upstream(upstreams.get(i));
+        }
+        mChannels = new DatagramChannel[socketCount];
+        mSelector = Selector.open();
+        try {
+            for (int i = 0; i < socketCount; i++) {
+                // 由系统分配随机的源端口
+                DatagramChannel channel = DatagramChannel.open();
+                mChannels[i] = channel;
+                channel.configureBlocking(false);
+                channel.bind(null);
+                channel.register(mSelector, SelectionKey.OP_READ, i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 设置所有请求者共用的应答缓存，必须在 start 之前调用
+     */
+    public void setAnswerCache(AnswerCache answerCache) {
+        mAnswerCache = answerCache;
+    }
+
+    /**
+     * 启用对冲，必须在 start 之前调用
+     *
+     * @param budgetPercent 对冲请求占普通请求的百分比上限
+     * @param minDelay      对冲的最短等待时间（毫秒）
+     */
+    public void setHedging(int budgetPercent, long minDelay) {
+        mHedgeBudget = budgetPercent;
+        mHedgeMinDelay = minDelay;
+    }
+
+    /**
+     * 被截断的响应改用TCP重新查询，必须在 start 之前调用
+     *
+     * @param connectionsPerUpstream 每个上游最多保持的TCP连接数
+     */
+    public void enableTcp(int connectionsPerUpstream) {
+        mTcpConnections = connectionsPerUpstream;
+    }
+
+    public void start() {
+        if (mTcpConnections > 0) {
+            mTcpPool = new TcpUpstreamPool(mTcpConnections, mAnswerCache);
+        }
+        mThread = new ReceiveThread();
+        mThread.start();
+    }
+
+    public void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException ignored) {
+            }
+            mThread = null;
+        }
+        if (mTcpPool != null) {
+            mTcpPool.stop();
+        }
+        close();
+    }
+
+    private void close() {
+        for (DatagramChannel channel : mChannels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Pending pending : mPending.values()) {
+            pending.cancelTimer();
+        }
+        mPending.clear();
+        mDue.clear();
+    }
+
+    /**
+     * 在共享缓存中查找请求的应答，可以在任意线程调用
+     *
+     * @return 从 PacketPool 中取出的数据包，事务ID已改写为请求的事务ID；
+     * 未命中或者应答超过请求者能接收的长度时返回null
+     */
+    public DatagramPacket getCached(byte data[], int offset, int length) {
+        if (mAnswerCache == null) {
+            return null;
+        }
+        String key = DNSPacket.getQuestionKey(data, offset, length);
+        if (key == null) {
+            return null;
+        }
+        DatagramPacket cached = mAnswerCache.get(key, DNSPacket.getTransactionId(data, offset), mPacketPool);
+        if (cached != null && cached.getLength() > DNSPacket.getUdpPayloadSize(data, offset, length)) {
+            mPacketPool.release(cached); // 经TCP得到的大应答，按普通请求发往上游以得到截断的应答
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * 把一个请求发往上游，可以在任意线程调用
+     *
+     * @param port 请求者编号，随响应一起交还给 callback
+     * @return 请求是否已发出
+     */
+    public boolean send(byte data[], int offset, int length, int port, Callback callback) {
+        int questionEnd = length < DNSPacket.HEADER_SIZE ? -1 : DNSPacket.skipQuestions(data, offset, offset + length);
+        if (questionEnd < 0) {
+            mDropCount.incrementAndGet();
+            return false;
+        }
+
+        byte query[] = Arrays.copyOfRange(data, offset, offset + length);
+        Pending pending = new Pending(selectUpstream(), callback, port,
+                DNSPacket.getTransactionId(query, 0), query, questionEnd - offset);
+        if (!sendPending(pending, query)) {
+            return false;
+        }
+        mSendCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 为请求分配通道和事务ID并发出
+     *
+     * @param buffer 开头是请求内容的缓冲区，事务ID会被改写
+     */
+    private boolean sendPending(Pending pending, byte buffer[]) {
+        int key = -1;
+        for (int i = 0; i < MAX_ID_TRIES; i++) {
+            int candidate = (mRandom.nextInt(mChannels.length) << 16) | mRandom.nextInt(0x10000);
+            pending.mKey = candidate;
+            if (mPending.putIfAbsent(candidate, pending) == null) {
+                key = candidate;
+                break;
+            }
+        }
+        if (key < 0) {
+            mDropCount.incrementAndGet();
+            return false;
+        }
+
+        DNSPacket.setTransactionId(buffer, 0, key & 0xFFFF);
+        try {
+            if (mChannels[key >>> 16].send(ByteBuffer.wrap(buffer, 0, pending.mQuery.length),
+                    pending.mUpstream.getAddress()) == 0) {
+                mPending.remove(key, pending);
+                mDropCount.incrementAndGet();
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mPending.remove(key, pending);
+            mDropCount.incrementAndGet();
+            return false;
+        }
+        pending.mUpstream.onSend();
+
+        if (mHedgeBudget > 0 && !pending.mHedge) {
+            pending.mStage = Pending.STAGE_HEDGE;
+            pending.mTimer = mTimerWheel.schedule(pending,
+                    Math.min(Math.max(pending.mUpstream.getP95(), mHedgeMinDelay), LOSS_TIMEOUT));
+        } else {
+            pending.mStage = Pending.STAGE_LOSS;
+            pending.mTimer = mTimerWheel.schedule(pending, LOSS_TIMEOUT);
+        }
+        return true;
+    }
+
+    /**
+     * 选择评分最好的可用上游，偶尔随机选择另一个可用上游。所有上游都被停用时仍选择评分最好的一个
+     */
+    private Upstream selectUpstream() {
+        if (mUpstreams.length == 1) {
+            return mUpstreams[0];
+        }
+
+        long now = System.currentTimeMillis();
+        Upstream best = null;
+        Upstream bestUp = null;
+        int upCount = 0;
+        for (Upstream upstream : mUpstreams) {
+            if (best == null || upstream.getScore() < best.getScore()) {
+                best = upstream;
+            }
+            if (upstream.isUp(now)) {
+                upCount++;
+                if (bestUp == null || upstream.getScore() < bestUp.getScore()) {
+                    bestUp = upstream;
+                }
+            }
+        }
+        if (bestUp == null) {
+            return best;
+        }
+
+        if (upCount > 1 && mRandom.nextInt(100) < EXPLORE_PERCENT) {
+            int pick = mRandom.nextInt(upCount - 1);
+            for (Upstream upstream : mUpstreams) {
+                if (upstream != bestUp && upstream.isUp(now) && pick-- == 0) {
+                    return upstream;
+                }
+            }
+        }
+        return bestUp;
+    }
+
+    /**
+     * 选择对冲的上游：除原上游外评分最好的可用上游，没有其他可用上游时仍发往原上游
+     */
+    private Upstream selectHedgeUpstream(Upstream exclude, long now) {
+        Upstream best = null;
+        for (Upstream upstream : mUpstreams) {
+            if (upstream != exclude && upstream.isUp(now)
+                    && (best == null || upstream.getScore() < best.getScore())) {
+                best = upstream;
+            }
+        }
+        return best == null ? exclude : best;
+    }
+
+    private void receive(int channelIndex) throws IOException {
+        DatagramChannel channel = mChannels[channelIndex];
+        ByteBuffer buffer = mReceiveBuffer;
+        byte data[] = buffer.array();
+        for (int i = 0; i < MAX_RECEIVE_BATCH; i++) {
+            buffer.clear();
+            SocketAddress from = channel.receive(buffer);
+            if (from == null) {
+                return;
+            }
+            int length = buffer.position();
+            if (length < DNSPacket.HEADER_SIZE) {
+                mMismatchCount.incrementAndGet();
+                continue;
+            }
+
+            int key = (channelIndex << 16) | DNSPacket.getTransactionId(data, 0);
+            Pending pending = mPending.get(key);
+            if (pending == null || !pending.mUpstream.getAddress().equals(from)
+                    || !pending.questionMatches(data, length)) {
+                mMismatchCount.incrementAndGet();
+                continue;
+            }
+            if (!mPending.remove(key, pending)) {
+                continue;
+            }
+            pending.cancelTimer();
+
+            pending.mUpstream.onAnswer((System.nanoTime() - pending.mSendTime) / 1000000.0, pending.mLost);
+            if (pending.mPeer != null) {
+                if (pending.mPeer.mAnswered) {
+                    continue; // 对冲的另一份请求已经响应过了
+                }
+                if (pending.mHedge) {
+                    mHedgeWinCount.incrementAndGet();
+                }
+            }
+            pending.mAnswered = true;
+
+            mRespondCount.incrementAndGet();
+            DNSPacket.setTransactionId(data, 0, pending.mTransactionId);
+            if (mTcpPool != null && DNSPacket.isTruncated(data, 0)) {
+                mTruncatedCount.incrementAndGet();
+                mTcpPool.send(pending.mUpstream.getAddress(), pending.mQuery, pending.mQuestionEnd,
+                        pending.mTransactionId, Arrays.copyOf(data, length), pending.mPort, pending.mCallback);
+                continue;
+            }
+            if (mAnswerCache != null
+                    && DNSPacket.isSameQuestion(pending.mQuery, 0, pending.mQuery.length, data, 0, length)) {
+                mAnswerCache.put(data, 0, length);
+            }
+            pending.mCallback.onRespond(pending.mPort, data, 0, length);
+        }
+    }
+
+    /**
+     * 在接收线程中处理定时器到期的请求：到达对冲时间时对冲，到达丢包时间时计为丢包，最后清理
+     */
+    private void onTimer(Pending pending) {
+        if (mPending.get(pending.mKey) != pending) {
+            return; // 已经响应或已被清理
+        }
+        long elapsed = (System.nanoTime() - pending.mSendTime) / 1000000L;
+        switch (pending.mStage) {
+            case Pending.STAGE_HEDGE:
+                hedge(pending);
+                pending.mStage = Pending.STAGE_LOSS;
+                pending.mTimer = mTimerWheel.schedule(pending, Math.max(0L, LOSS_TIMEOUT - elapsed));
+                break;
+            case Pending.STAGE_LOSS:
+                pending.mLost = true;
+                if (pending.mUpstream.onLost(System.currentTimeMillis())) {
+                    System.out.println("Upstream not responding, disabled for a while: " + pending.mUpstream);
+                }
+                pending.mStage = Pending.STAGE_EXPIRE;
+                pending.mTimer = mTimerWheel.schedule(pending, Math.max(0L, PENDING_TIMEOUT - elapsed));
+                break;
+            default:
+                if (mPending.remove(pending.mKey, pending)) {
+                    mExpireCount.incrementAndGet();
+                }
+                break;
+        }
+    }
+
+    /**
+     * 为请求发一份对冲请求，超出对冲预算时不发
+     */
+    private void hedge(Pending pending) {
+        long sent = mSendCount.get();
+        mHedgeCredit = Math.min(MAX_HEDGE_CREDIT,
+                mHedgeCredit + (sent - mCreditedSendCount) * mHedgeBudget / 100.0);
+        mCreditedSendCount = sent;
+        if (mHedgeCredit < 1.0 || pending.mPeer != null) {
+            return;
+        }
+
+        Pending hedge = new Pending(selectHedgeUpstream(pending.mUpstream, System.currentTimeMillis()),
+                pending.mCallback, pending.mPort, pending.mTransactionId, pending.mQuery, pending.mQuestionEnd);
+        hedge.mHedge = true;
+        hedge.mPeer = pending;
+        pending.mPeer = hedge; // 发送失败也不再对冲
+        System.arraycopy(pending.mQuery, 0, mHedgeBuffer, 0, pending.mQuery.length);
+        if (sendPending(hedge, mHedgeBuffer)) {
+            mHedgeCount.incrementAndGet();
+            mHedgeCredit -= 1.0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Upstream sockets %d, sent %d, answered %d, hedged %d (won %d), truncated %d, "
+                        + "expired %d, mismatched %d, dropped %d",
+                mChannels.length, mSendCount.get(), mRespondCount.get(), mHedgeCount.get(), mHedgeWinCount.get(),
+                mTruncatedCount.get(), mExpireCount.get(), mMismatchCount.get(), mDropCount.get());
+    }
+
+    /**
+     * 各上游的统计，每个上游一行
+     */
+    public String getUpstreamStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Upstream upstream : mUpstreams) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append("  ").append(upstream);
+        }
+        if (mTcpPool != null) {
+            sb.append("\n  ").append(mTcpPool);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 定时器到期时把请求交回接收线程
+     */
+    private class Pending implements Runnable {
+        private static final int STAGE_HEDGE = 0;
+        private static final int STAGE_LOSS = 1;
+        private static final int STAGE_EXPIRE = 2;
+
+        private final Upstream mUpstream;
+        private final Callback mCallback;
+        private final int mPort;
+        private final int mTransactionId;
+        private final byte mQuery[]; // 请求的副本，事务ID会被改写，原来的事务ID保存在 mTransactionId
+        private final int mQuestionEnd;
+        private final long mSendTime = System.nanoTime();
+        private int mKey;
+        private volatile TimerWheel.Timeout mTimer = null;
+        private volatile int mStage;
+
+        // 以下只在接收线程中访问
+        private boolean mLost = false;
+        private boolean mHedge = false;
+        private boolean mAnswered = false;
+        private Pending mPeer = null; // 对冲的另一份请求
+
+        private Pending(Upstream upstream, Callback callback, int port, int transactionId,
+                        byte query[], int questionEnd) {
+            mUpstream = upstream;
+            mCallback = callback;
+            mPort = port;
+            mTransactionId = transactionId;
+            mQuery = query;
+            mQuestionEnd = questionEnd;
+        }
+
+        /**
+         * 在 TimerWheel 的线程中调用
+         */
+        @Override
+        public void run() {
+            mDue.offer(this);
+            mSelector.wakeup();
+        }
+
+        private void cancelTimer() {
+            TimerWheel.Timeout timer = mTimer;
+            if (timer != null) {
+                timer.cancel();
+            }
+        }
+
+        private boolean questionMatches(byte data[], int length) {
+            if (length < mQuestionEnd) {
+                return false;
+            }
+            for (int i = DNSPacket.HEADER_SIZE; i < mQuestionEnd; i++) {
+                if (data[i] != mQuery[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 接收所有通道上的响应，并处理定时器到期的请求
+     */
+    private class ReceiveThread extends Thread {
+        @Override
+        public void run() {
+            while (!interrupted()) {
+                try {
+                    mSelector.select();
+                    Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        receive((Integer) key.attachment());
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                Pending pending;
+                while ((pending = mDue.poll()) != null) {
+                    onTimer(pending);
+                }
+            }
+        }
+    }
+}